@@ -3,47 +3,22 @@ Gather relevance scores for given
 """
 import json
 
-baseQuery = {
-   "query": {
-      "bool": {
-         "filter": {
-             "ids": {
-                "values": [
-                   # list of ids goes here
-                ]
-             }
-         },
-         "should": {
-		# query goes here
-         }
-      }
-   }
-}
-
 def kwDocFeatures(es, index, searchType, judgements):
     for qid, judgements in judgements.items():
         docIds = [judgement.docId for judgement in judgements]
         keywords = judgements[0].keywords
-        bulkSearchReq = []
-        for query in featureQueries(keywords, docIds):
-            bulkSearchReq.append(json.dumps({'index': index, 'type': searchType}))
-            bulkSearchReq.append(json.dumps(query))
-
-        res = es.msearch(body="\n".join(bulkSearchReq))
-        ftrId = 1
-        for featureResp in res['responses']:
-            featuresByDoc = {}
-            for docScored in featureResp['hits']['hits']:
-                print("%s => %s" % (docScored['_id'], docScored['_score']))
-                featuresByDoc[docScored['_id']] = docScored['_score']
-
-            for judgement in judgements:
-                try:
-                    judgement.features.append(featuresByDoc[judgement.docId])
-                except KeyError:
-                    judgement.features.append(0.0)
+        # every feature of every graded doc in one request
+        body = {'ids': docIds, 'features': list(featureQueries(keywords))}
+        res = es.transport.perform_request('POST', '/%s/_ltr/_log_features' % index, body=body)
+        featuresByDoc = {}
+        for doc in res['docs']:
+            featuresByDoc[doc['_id']] = doc['features']
 
-            ftrId += 1
+        for judgement in judgements:
+            try:
+                judgement.features.extend(featuresByDoc[judgement.docId])
+            except KeyError:
+                judgement.features.extend([0.0] * len(body['features']))
 
 
 def formatFeature(ftrId, keywords):
@@ -53,18 +28,14 @@ def formatFeature(ftrId, keywords):
     return json.loads(jsonStr)
 
 
-def featureQueries(keywords, docIds):
-    from copy import deepcopy
-    thisBase = deepcopy(baseQuery)
-    thisBase['query']['bool']['filter']['ids']['values'] = docIds
+def featureQueries(keywords):
     try:
         ftrId = 1
         while True:
             parsedJson = formatFeature(ftrId, keywords)
             if not 'query' in parsedJson:
                 raise ValueError("%s.json.jinja should be an ES query with root of {\"query..." % ftrId)
-            thisBase['query']['bool']['should'] = parsedJson['query']
-            yield thisBase
+            yield parsedJson['query']
             ftrId+=1
     except IOError:
         pass
@@ -0,0 +1,132 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.bench;
+
+import com.o19s.es.ltr.query.LtrQuery;
+import com.o19s.es.ltr.ranker.LinearRanker;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end ltr query over a generated in-memory index: every feature is a
+ * term query on a random vocabulary, scored by a linear model reading them all.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LtrQueryBenchmark {
+    private static final String FIELD = "body";
+    private static final int TERMS_PER_DOC = 8;
+
+    @Param({"2", "10", "50"})
+    public int numFeatures;
+
+    @Param({"10000", "100000"})
+    public int numDocs;
+
+    // only score documents matching a feature, or every document
+    @Param({"false", "true"})
+    public boolean allDocs;
+
+    @Param({"false", "true"})
+    public boolean sparse;
+
+    private Directory _dir;
+    private DirectoryReader _reader;
+    private IndexSearcher _searcher;
+    private LtrQuery _query;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(0);
+        // twice as many terms as features, so documents match about a quarter of the features
+        int vocabulary = numFeatures * 2;
+        _dir = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(_dir, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < numDocs; i++) {
+                text.setLength(0);
+                for (int t = 0; t < TERMS_PER_DOC; t++) {
+                    text.append("t").append(random.nextInt(vocabulary)).append(' ');
+                }
+                Document doc = new Document();
+                doc.add(new TextField(FIELD, text.toString(), Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+        }
+        _reader = DirectoryReader.open(_dir);
+        _searcher = new IndexSearcher(_reader);
+        // measure scoring, not the query cache
+        _searcher.setQueryCache(null);
+
+        List<Query> features = new ArrayList<>(numFeatures);
+        List<String> names = new ArrayList<>(numFeatures);
+        int[] ids = new int[numFeatures];
+        float[] weights = new float[numFeatures];
+        for (int i = 0; i < numFeatures; i++) {
+            features.add(new TermQuery(new Term(FIELD, "t" + i)));
+            names.add("feature_" + i);
+            ids[i] = i + 1;
+            weights[i] = random.nextFloat();
+        }
+        _query = new LtrQuery(features, new LinearRanker("bench", ids, weights, 0.0F), names, null, allDocs, sparse);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        _reader.close();
+        _dir.close();
+    }
+
+    @Benchmark
+    public TopDocs search() throws IOException {
+        return _searcher.search(_query, 10);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.bench;
+
+import ciir.umass.edu.learning.RankerFactory;
+import com.o19s.es.ltr.query.DenseProgramaticDataPoint;
+import com.o19s.es.ltr.query.LtrBulkScorer;
+import com.o19s.es.ltr.query.RankLibScriptEngine;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.RankLibRanker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluation of the sample models, one document at a time as when
+ * explaining or rescoring, and by blocks as the ltr bulk scorer does.
+ *
+ * The compiled evaluator is what ltr queries use, ranklib is the
+ * RankLib model the compiled one was built from.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RankerBenchmark {
+    // the sample models are trained on the two features of the demo
+    private static final int NUM_FEATURES = 2;
+    private static final int NUM_DOCS = 1 << 12;
+    private static final int BLOCK_SIZE = LtrBulkScorer.BLOCK_SIZE;
+
+    @Param({"lambdaMART.txt", "mart.txt", "randomForest.txt", "coord_ascent.txt"})
+    public String model;
+
+    @Param({"compiled", "ranklib"})
+    public String evaluator;
+
+    private LtrRanker _ranker;
+    // feature values of random documents, column-major like a block
+    private float[][] _features;
+    private final DenseProgramaticDataPoint _point = new DenseProgramaticDataPoint(NUM_FEATURES);
+    private final float[][] _block = new float[NUM_FEATURES][BLOCK_SIZE];
+    private final float[] _scores = new float[BLOCK_SIZE];
+    private int _doc;
+
+    @Setup
+    public void setup() throws IOException {
+        String definition = new String(Files.readAllBytes(Paths.get("sample_models", model)), StandardCharsets.UTF_8);
+        RankerFactory factory = new RankerFactory();
+        if ("compiled".equals(evaluator)) {
+            _ranker = RankLibScriptEngine.compileModel(factory, definition);
+        } else {
+            _ranker = new RankLibRanker(factory.loadRankerFromString(definition));
+        }
+        Random random = new Random(0);
+        _features = new float[NUM_FEATURES][NUM_DOCS];
+        for (int f = 0; f < NUM_FEATURES; f++) {
+            for (int d = 0; d < NUM_DOCS; d++) {
+                _features[f][d] = random.nextFloat();
+            }
+        }
+    }
+
+    @Benchmark
+    public float single() {
+        int doc = _doc++ & (NUM_DOCS - 1);
+        for (int f = 0; f < NUM_FEATURES; f++) {
+            _point.setFeatureValue(f + 1, _features[f][doc]);
+        }
+        return _ranker.score(_point);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK_SIZE)
+    public float[] block() {
+        int start = (_doc += BLOCK_SIZE) & (NUM_DOCS - 1);
+        for (int f = 0; f < NUM_FEATURES; f++) {
+            System.arraycopy(_features[f], start, _block[f], 0, BLOCK_SIZE);
+        }
+        _ranker.score(_block, BLOCK_SIZE, _scores);
+        return _scores;
+    }
+}
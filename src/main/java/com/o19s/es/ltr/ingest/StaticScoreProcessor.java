@@ -0,0 +1,157 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.ingest;
+
+import ciir.umass.edu.learning.DataPoint;
+import com.o19s.es.ltr.query.DenseProgramaticDataPoint;
+import com.o19s.es.ltr.query.LtrServices;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.TreeEnsembleRanker;
+import org.elasticsearch.ingest.AbstractProcessor;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+import static org.elasticsearch.ingest.ConfigurationUtils.newConfigurationException;
+import static org.elasticsearch.ingest.ConfigurationUtils.readMap;
+import static org.elasticsearch.ingest.ConfigurationUtils.readObject;
+import static org.elasticsearch.ingest.ConfigurationUtils.readStringProperty;
+
+/**
+ * Writes the score of the trees of a stored model that only read static
+ * features, i.e. features of the document that don't depend on the query:
+ *
+ * { "ltr_static_score": { "model": "my_model", "version": 1,
+ *     "features": { "3": "popularity", "4": "quality" }, "target_field": "ltr_static" } }
+ *
+ * Features maps the id of each static feature to the document field holding
+ * its value, missing fields are zero. Ltr queries with the same static
+ * features read the target field instead of evaluating these trees.
+ */
+public class StaticScoreProcessor extends AbstractProcessor {
+    public static final String TYPE = "ltr_static_score";
+
+    private final Supplier<LtrRanker> _model;
+    // split on the first document, stored model versions never change
+    private volatile TreeEnsembleRanker _staticTrees;
+    // static feature ids in ascending order, and the field of each
+    private final int[] _featureIds;
+    private final String[] _fields;
+    private final String _targetField;
+
+    public StaticScoreProcessor(String tag, Supplier<LtrRanker> model, int[] featureIds, String[] fields, String targetField) {
+        super(tag);
+        assert featureIds.length == fields.length;
+        _model = model;
+        _featureIds = featureIds;
+        _fields = fields;
+        _targetField = targetField;
+    }
+
+    @Override
+    public void execute(IngestDocument document) throws Exception {
+        TreeEnsembleRanker staticTrees = staticTrees();
+        int maxFeatureId = _featureIds.length == 0 ? 0 : _featureIds[_featureIds.length - 1];
+        DataPoint point = new DenseProgramaticDataPoint(maxFeatureId);
+        for (int i = 0; i < _featureIds.length; i++) {
+            point.setFeatureValue(_featureIds[i], featureValue(document, _fields[i]));
+        }
+        document.setFieldValue(_targetField, staticTrees.score(point));
+    }
+
+    private TreeEnsembleRanker staticTrees() {
+        TreeEnsembleRanker staticTrees = _staticTrees;
+        if (staticTrees == null) {
+            LtrRanker model = _model.get();
+            if (!(model instanceof TreeEnsembleRanker)) {
+                throw new IllegalArgumentException("[" + TYPE + "] requires a tree ensemble, model [" + model.name() +
+                        "] is not one");
+            }
+            staticTrees = ((TreeEnsembleRanker) model).split(_featureIds).staticTrees();
+            _staticTrees = staticTrees;
+        }
+        return staticTrees;
+    }
+
+    private static float featureValue(IngestDocument document, String field) {
+        if (!document.hasField(field)) {
+            return 0.0F;
+        }
+        Object value = document.getFieldValue(field, Object.class);
+        if (value == null) {
+            return 0.0F;
+        }
+        if (!(value instanceof Number)) {
+            throw new IllegalArgumentException("[" + TYPE + "] field [" + field + "] of type [" + value.getClass().getName() +
+                    "] is not a number");
+        }
+        return ((Number) value).floatValue();
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public static final class Factory implements Processor.Factory {
+        private final LtrServices _services;
+
+        public Factory(LtrServices services) {
+            _services = services;
+        }
+
+        @Override
+        public StaticScoreProcessor create(Map<String, Processor.Factory> registry, String tag, Map<String, Object> config)
+                throws Exception {
+            String modelName = readStringProperty(TYPE, tag, config, "model");
+            Object version = readObject(TYPE, tag, config, "version");
+            if (!(version instanceof Number)) {
+                throw newConfigurationException(TYPE, tag, "version", "must be a number");
+            }
+            long modelVersion = ((Number) version).longValue();
+            Map<String, String> features = readMap(TYPE, tag, config, "features");
+            // sorted by feature id
+            TreeMap<Integer, String> fields = new TreeMap<>();
+            for (Map.Entry<String, String> feature : features.entrySet()) {
+                int featureId;
+                try {
+                    featureId = Integer.parseInt(feature.getKey());
+                } catch (NumberFormatException e) {
+                    throw newConfigurationException(TYPE, tag, "features", "[" + feature.getKey() + "] is not a feature id");
+                }
+                if (featureId <= 0) {
+                    throw newConfigurationException(TYPE, tag, "features", "feature ids must be positive, got [" + featureId + "]");
+                }
+                fields.put(featureId, feature.getValue());
+            }
+            String targetField = readStringProperty(TYPE, tag, config, "target_field");
+
+            int[] featureIds = new int[fields.size()];
+            String[] sourceFields = new String[fields.size()];
+            int i = 0;
+            for (Map.Entry<Integer, String> field : fields.entrySet()) {
+                featureIds[i] = field.getKey();
+                sourceFields[i++] = field.getValue();
+            }
+            // loaded when the first document comes in, pipelines are created on the cluster state thread
+            Supplier<LtrRanker> model = () -> _services.modelStore().load(_services.client(), modelName, modelVersion);
+            return new StaticScoreProcessor(tag, model, featureIds, sourceFields, targetField);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.logging;
+
+import com.o19s.es.ltr.query.LtrCircuitBreaker;
+import com.o19s.es.ltr.query.LtrQuery;
+import com.o19s.es.ltr.ranker.NoopRanker;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.fetch.FetchSubPhase;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHitField;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adds the feature vector of each hit, as the {@value #FIELD} field, when the
+ * search asks for it with the {@link LoggingSearchExtBuilder} ext. The features
+ * are either given by the ext or those of a named ltr query of the search, in
+ * which case the model score can be added as the {@value #SCORE_FIELD} field.
+ *
+ * The hits are visited by segment and docID so every feature scorer is
+ * created once per segment and only moves forward, the cost is a single
+ * pass over the hits whatever the number of features.
+ */
+public class LoggingFetchSubPhase implements FetchSubPhase {
+    public static final String FIELD = "_ltr_features";
+    public static final String SCORE_FIELD = "_ltr_model_score";
+
+    private final LtrCircuitBreaker _breaker;
+
+    public LoggingFetchSubPhase() {
+        this(null);
+    }
+
+    /**
+     * @param breaker accounts the feature matrix of the hits, may be null
+     */
+    public LoggingFetchSubPhase(LtrCircuitBreaker breaker) {
+        _breaker = breaker;
+    }
+
+    @Override
+    public void hitsExecute(SearchContext context, InternalSearchHit[] hits) {
+        LoggingSearchExtBuilder ext = (LoggingSearchExtBuilder) context.getSearchExt(LoggingSearchExtBuilder.NAME);
+        if (ext == null || hits.length == 0) {
+            return;
+        }
+        try {
+            LtrQuery query = ext.queryName() != null ? namedQuery(context, ext.queryName()) : featuresQuery(context, ext);
+            int[] docIds = new int[hits.length];
+            for (int i = 0; i < hits.length; i++) {
+                docIds[i] = hits[i].docId();
+            }
+            // the features are extracted in doc order then copied in hit order
+            long bytes = 2 * LtrCircuitBreaker.matrixBytes(query.getFeatures().size(), hits.length);
+            if (_breaker != null) {
+                _breaker.addEstimateBytesAndMaybeBreak(bytes, "logged features");
+            }
+            try {
+                logHits(hits, query, extractFeatures(context.searcher(), query, docIds), Boolean.TRUE.equals(ext.modelScore()));
+            } finally {
+                if (_breaker != null) {
+                    _breaker.addWithoutBreaking(-bytes);
+                }
+            }
+        } catch (IOException e) {
+            throw new ElasticsearchException("Failed to log the features of the hits", e);
+        }
+    }
+
+    private static void logHits(InternalSearchHit[] hits, LtrQuery query, float[][] vectors, boolean modelScore) {
+        float[] scores = null;
+        if (modelScore) {
+            scores = new float[hits.length];
+            query.getRankModel().score(vectors, hits.length, scores);
+        }
+        for (int i = 0; i < hits.length; i++) {
+            List<Object> values = new ArrayList<>(vectors.length);
+            for (float[] feature : vectors) {
+                values.add(feature[i]);
+            }
+            addField(hits[i], new InternalSearchHitField(FIELD, values));
+            if (scores != null) {
+                addField(hits[i], new InternalSearchHitField(SCORE_FIELD, Collections.singletonList(scores[i])));
+            }
+        }
+    }
+
+    private static LtrQuery featuresQuery(SearchContext context, LoggingSearchExtBuilder ext) throws IOException {
+        QueryShardContext shardContext = context.getQueryShardContext();
+        List<Query> features = new ArrayList<>(ext.features().size());
+        List<String> featureNames = new ArrayList<>(ext.features().size());
+        for (QueryBuilder feature : ext.features()) {
+            features.add(QueryBuilder.rewriteQuery(feature, shardContext).toQuery(shardContext));
+            featureNames.add(feature.queryName());
+        }
+        return new LtrQuery(features, NoopRanker.INSTANCE, featureNames);
+    }
+
+    /**
+     * The ltr query named name, in the query or a rescore query of the search.
+     * Its feature queries and model are reused as they are.
+     */
+    private static LtrQuery namedQuery(SearchContext context, String name) {
+        // the shard context also knows the named queries of the rescorers, the parsed query doesn't
+        Map<String, Query> namedQueries = new HashMap<>(context.getQueryShardContext().copyNamedQueries());
+        if (context.parsedQuery() != null) {
+            namedQueries.putAll(context.parsedQuery().namedFilters());
+        }
+        LtrQuery query = findLtrQuery(namedQueries, name);
+        if (query == null) {
+            throw new IllegalArgumentException("[" + LoggingSearchExtBuilder.NAME + "] no ltr query named [" + name + "]");
+        }
+        return query;
+    }
+
+    static LtrQuery findLtrQuery(Map<String, Query> namedQueries, String name) {
+        Query query = namedQueries.get(name);
+        while (query instanceof BoostQuery) {
+            query = ((BoostQuery) query).getQuery();
+        }
+        return query instanceof LtrQuery ? (LtrQuery) query : null;
+    }
+
+    /**
+     * @param docIds documents in any order
+     * @return column-major features, column i holds the features of docIds[i]
+     */
+    static float[][] extractFeatures(IndexSearcher searcher, LtrQuery query, int[] docIds) throws IOException {
+        Integer[] byDoc = new Integer[docIds.length];
+        for (int i = 0; i < docIds.length; i++) {
+            byDoc[i] = i;
+        }
+        Arrays.sort(byDoc, Comparator.comparingInt((i) -> docIds[i]));
+        int[] sortedDocs = new int[docIds.length];
+        for (int i = 0; i < docIds.length; i++) {
+            sortedDocs[i] = docIds[byDoc[i]];
+        }
+        float[][] sorted = query.extractFeatures(searcher, sortedDocs);
+        // back to the order of the hits
+        float[][] vectors = new float[sorted.length][docIds.length];
+        for (int f = 0; f < sorted.length; f++) {
+            for (int i = 0; i < docIds.length; i++) {
+                vectors[f][byDoc[i]] = sorted[f][i];
+            }
+        }
+        return vectors;
+    }
+
+    static void addField(InternalSearchHit hit, SearchHitField field) {
+        Map<String, SearchHitField> fields = hit.fieldsOrNull();
+        if (fields == null) {
+            fields = new HashMap<>();
+            hit.fields(fields);
+        }
+        fields.put(field.getName(), field);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.logging;
+
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ObjectParser;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.search.SearchExtBuilder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Asks for the feature vector of each hit to be returned with the hit:
+ *
+ * "ext": {
+ *     "ltr_log": {
+ *         "features": [ ... feature queries, in model order ... ]
+ *     }
+ * }
+ *
+ * or, to log the features of an ltr query of the search, named with _name,
+ * and optionally its model's score:
+ *
+ * "ext": {
+ *     "ltr_log": {
+ *         "query": "my_ltr_query",
+ *         "model_score": true
+ *     }
+ * }
+ */
+public class LoggingSearchExtBuilder extends SearchExtBuilder {
+    public static final String NAME = "ltr_log";
+    private static final ObjectParser<LoggingSearchExtBuilder, QueryParseContext> PARSER;
+
+    private List<QueryBuilder> _features;
+    private String _queryName;
+    private Boolean _modelScore;
+
+    static {
+        PARSER = new ObjectParser<>(NAME, LoggingSearchExtBuilder::new);
+        PARSER.declareObjectArray(
+                LoggingSearchExtBuilder::features,
+                (parser, context) -> context.parseInnerQueryBuilder().get(),
+                new ParseField("features"));
+        PARSER.declareString(LoggingSearchExtBuilder::queryName, new ParseField("query"));
+        PARSER.declareBoolean(LoggingSearchExtBuilder::modelScore, new ParseField("model_score"));
+    }
+
+    public LoggingSearchExtBuilder() {
+    }
+
+    public LoggingSearchExtBuilder(StreamInput in) throws IOException {
+        if (in.readBoolean()) {
+            _features = in.readNamedWriteableList(QueryBuilder.class);
+        }
+        _queryName = in.readOptionalString();
+        _modelScore = in.readOptionalBoolean();
+    }
+
+    public static LoggingSearchExtBuilder parse(XContentParser parser) throws IOException {
+        final LoggingSearchExtBuilder ext;
+        try {
+            ext = PARSER.apply(parser, new QueryParseContext(parser));
+        } catch (IllegalArgumentException e) {
+            throw new ParsingException(parser.getTokenLocation(), e.getMessage(), e);
+        }
+        if (ext._queryName == null && (ext._features == null || ext._features.isEmpty())) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] requires features or a query");
+        }
+        if (ext._queryName != null && ext._features != null) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] requires either features or a query, not both");
+        }
+        if (ext._queryName == null && Boolean.TRUE.equals(ext._modelScore)) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] can only log the model score of a query");
+        }
+        return ext;
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeBoolean(_features != null);
+        if (_features != null) {
+            out.writeNamedWriteableList(_features);
+        }
+        out.writeOptionalString(_queryName);
+        out.writeOptionalBoolean(_modelScore);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        if (_features != null) {
+            builder.startArray("features");
+            for (QueryBuilder feature : _features) {
+                feature.toXContent(builder, params);
+            }
+            builder.endArray();
+        }
+        if (_queryName != null) {
+            builder.field("query", _queryName);
+        }
+        if (_modelScore != null) {
+            builder.field("model_score", _modelScore);
+        }
+        return builder.endObject();
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+
+    public List<QueryBuilder> features() {
+        return _features;
+    }
+
+    public LoggingSearchExtBuilder features(List<QueryBuilder> features) {
+        _features = features;
+        return this;
+    }
+
+    public String queryName() {
+        return _queryName;
+    }
+
+    public LoggingSearchExtBuilder queryName(String queryName) {
+        _queryName = queryName;
+        return this;
+    }
+
+    public Boolean modelScore() {
+        return _modelScore;
+    }
+
+    public LoggingSearchExtBuilder modelScore(Boolean modelScore) {
+        _modelScore = modelScore;
+        return this;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(_features, _queryName, _modelScore);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        LoggingSearchExtBuilder other = (LoggingSearchExtBuilder) obj;
+        return Objects.equals(_features, other._features) &&
+                Objects.equals(_queryName, other._queryName) &&
+                Objects.equals(_modelScore, other._modelScore);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.logging;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ObjectParser;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.rest.action.RestActionListener;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * Logs the features of a list of documents in one search:
+ *
+ * POST /{index}/_ltr/_log_features
+ * {
+ *     "ids": ["1", "7", ...],
+ *     "features": [ ... feature queries, in model order ... ]
+ * }
+ *
+ * Every feature is computed in the same pass over the documents, rather than
+ * running one search per feature. Ids are searched by pages of {@link #PAGE_SIZE},
+ * so long lists stay below the result window of the index. The response is built
+ * in memory once every page is logged, so at most {@link #MAX_IDS} ids are logged
+ * at once.
+ */
+public class RestLogFeaturesAction extends BaseRestHandler {
+    public static final int PAGE_SIZE = 1000;
+    public static final int MAX_IDS = 10000;
+    private static final ObjectParser<Body, QueryParseContext> PARSER;
+
+    static {
+        PARSER = new ObjectParser<>("log_features", Body::new);
+        PARSER.declareStringArray((body, ids) -> body.ids = ids, new ParseField("ids"));
+        PARSER.declareObjectArray(
+                (body, features) -> body.features = features,
+                (parser, context) -> context.parseInnerQueryBuilder().get(),
+                new ParseField("features"));
+    }
+
+    public RestLogFeaturesAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(RestRequest.Method.GET, "/{index}/_ltr/_log_features", this);
+        controller.registerHandler(RestRequest.Method.POST, "/{index}/_ltr/_log_features", this);
+    }
+
+    public String getName() {
+        return "ltr_log_features_action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        Body body;
+        try (XContentParser parser = request.contentParser()) {
+            body = PARSER.apply(parser, new QueryParseContext(parser));
+        }
+        if (body.ids == null || body.ids.isEmpty()) {
+            throw new IllegalArgumentException("[log_features] requires ids");
+        }
+        if (body.features == null || body.features.isEmpty()) {
+            throw new IllegalArgumentException("[log_features] requires features");
+        }
+
+        // duplicates would be logged twice when on different pages
+        List<String> ids = new ArrayList<>(new LinkedHashSet<>(body.ids));
+        if (ids.size() > MAX_IDS) {
+            throw new IllegalArgumentException("[log_features] can log at most [" + MAX_IDS + "] ids at once, got [" +
+                    ids.size() + "]");
+        }
+        String[] indices = Strings.splitStringByCommaToArray(request.param("index"));
+        return channel -> new PagedLog(client, channel, indices, ids, body.features).next();
+    }
+
+    /**
+     * Searches the ids page after page, and responds once every page is logged
+     */
+    private static class PagedLog {
+        private final NodeClient _client;
+        private final RestChannel _channel;
+        private final String[] _indices;
+        private final List<String> _ids;
+        private final List<QueryBuilder> _features;
+        private final List<SearchHit> _hits = new ArrayList<>();
+        private int _from;
+        private long _took;
+        private int _failedShards;
+
+        PagedLog(NodeClient client, RestChannel channel, String[] indices, List<String> ids, List<QueryBuilder> features) {
+            _client = client;
+            _channel = channel;
+            _indices = indices;
+            _ids = ids;
+            _features = features;
+        }
+
+        void next() {
+            List<String> page = _ids.subList(_from, Math.min(_from + PAGE_SIZE, _ids.size()));
+            _from += page.size();
+            search(page, page.size());
+        }
+
+        /**
+         * Log a page of ids, searched again with a larger size when they match more documents
+         */
+        private void search(List<String> page, int size) {
+            SearchSourceBuilder source = new SearchSourceBuilder()
+                    .query(QueryBuilders.idsQuery().addIds(page.toArray(new String[page.size()])))
+                    .size(size)
+                    .fetchSource(false)
+                    .ext(singletonList(new LoggingSearchExtBuilder().features(_features)));
+            _client.search(new SearchRequest(_indices).source(source), new RestActionListener<SearchResponse>(_channel) {
+                @Override
+                protected void processResponse(SearchResponse response) throws Exception {
+                    _took += response.getTookInMillis();
+                    long totalHits = response.getHits().getTotalHits();
+                    if (totalHits > size) {
+                        // an id of several types of the index
+                        search(page, (int) totalHits);
+                        return;
+                    }
+                    _failedShards += response.getFailedShards();
+                    Collections.addAll(_hits, response.getHits().getHits());
+                    if (_from < _ids.size()) {
+                        next();
+                    } else {
+                        _channel.sendResponse(buildResponse());
+                    }
+                }
+            });
+        }
+
+        private RestResponse buildResponse() throws IOException {
+            XContentBuilder builder = _channel.newBuilder();
+            builder.startObject();
+            builder.field("took", _took);
+            // documents of failed shards are missing from docs
+            builder.field("failed_shards", _failedShards);
+            builder.startArray("docs");
+            for (SearchHit hit : _hits) {
+                builder.startObject();
+                builder.field("_index", hit.getIndex());
+                builder.field("_type", hit.getType());
+                builder.field("_id", hit.getId());
+                SearchHitField features = hit.field(LoggingFetchSubPhase.FIELD);
+                if (features == null) {
+                    builder.nullField("features");
+                } else {
+                    builder.field("features", features.getValues());
+                }
+                builder.endObject();
+            }
+            builder.endArray();
+            builder.endObject();
+            return new BytesRestResponse(RestStatus.OK, builder);
+        }
+    }
+
+    private static class Body {
+        List<String> ids;
+        List<QueryBuilder> features;
+    }
+}
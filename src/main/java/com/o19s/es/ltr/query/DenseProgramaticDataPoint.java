@@ -19,6 +19,8 @@ package com.o19s.es.ltr.query;
 import ciir.umass.edu.learning.DataPoint;
 import ciir.umass.edu.utilities.RankLibError;
 
+import java.util.Arrays;
+
 /**
  * Implements DataPoint but without needing to pass in a stirng
  * to be parsed
@@ -46,6 +48,13 @@ public class DenseProgramaticDataPoint extends DataPoint {
         }
     }
 
+    /**
+     * Zero every feature so the point can be reused for the next document
+     */
+    public void reset() {
+        Arrays.fill(this.fVals, 0.0F);
+    }
+
     public void setFeatureVector(float[] dfVals) {
         this.fVals = dfVals;
     }
@@ -0,0 +1,129 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.o19s.es.ltr.query;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.PriorityQueue;
+
+import java.io.IOException;
+
+/**
+ * Iterates the union of the feature scorers' iterators, so only
+ * documents matching at least one feature are visited. It also reports
+ * which features are positioned on the current document without
+ * looking at the others.
+ *  modeled largely after the approximation of DisjunctionMaxQuery
+ */
+public class FeatureDisjunctionIterator extends DocIdSetIterator {
+    private final FeatureQueue _queue;
+    private final long _cost;
+    private int _doc = -1;
+
+    /**
+     * @param iterators iterator of each feature, null for features matching nothing
+     */
+    public FeatureDisjunctionIterator(DocIdSetIterator[] iterators) {
+        _queue = new FeatureQueue(iterators.length);
+        long cost = 0;
+        for (int i = 0; i < iterators.length; i++) {
+            if (iterators[i] != null) {
+                _queue.add(new FeatureIterator(i, iterators[i]));
+                cost += iterators[i].cost();
+            }
+        }
+        assert _queue.size() > 0;
+        _cost = cost;
+    }
+
+    @Override
+    public int docID() {
+        return _doc;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+        return advance(_doc + 1);
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+        FeatureIterator top = _queue.top();
+        while (top.doc < target) {
+            top.doc = top.iterator.advance(target);
+            top = _queue.updateTop();
+        }
+        _doc = top.doc;
+        return _doc;
+    }
+
+    @Override
+    public long cost() {
+        return _cost;
+    }
+
+    /**
+     * Collect the 0-based index of the features positioned on the current document
+     *
+     * @return the number of features written to features
+     */
+    public int matchingFeatures(int[] features) {
+        if (_doc == -1 || _doc == NO_MORE_DOCS) {
+            return 0;
+        }
+        return _queue.collect(1, _doc, features, 0);
+    }
+
+    private static class FeatureIterator {
+        final int feature;
+        final DocIdSetIterator iterator;
+        int doc;
+
+        FeatureIterator(int feature, DocIdSetIterator iterator) {
+            this.feature = feature;
+            this.iterator = iterator;
+            this.doc = iterator.docID();
+        }
+    }
+
+    private static class FeatureQueue extends PriorityQueue<FeatureIterator> {
+        FeatureQueue(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected boolean lessThan(FeatureIterator a, FeatureIterator b) {
+            return a.doc < b.doc;
+        }
+
+        /**
+         * Walk the heap from slot i, children are never before their parent
+         * so a subtree is skipped as soon as its root is past doc
+         */
+        int collect(int i, int doc, int[] features, int numFeatures) {
+            if (i > size()) {
+                return numFeatures;
+            }
+            FeatureIterator iterator = (FeatureIterator) getHeapArray()[i];
+            if (iterator.doc != doc) {
+                return numFeatures;
+            }
+            features[numFeatures++] = iterator.feature;
+            numFeatures = collect(2 * i, doc, features, numFeatures);
+            return collect(2 * i + 1, doc, features, numFeatures);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.query;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.Similarity;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the rewritten and normalized weight of feature queries per index reader,
+ * so repeated ltr queries don't rewrite their features and look up their term
+ * statistics on every request. Entries of a reader are dropped when it is closed,
+ * that is once a refresh replaced it and no search uses it anymore.
+ *
+ * Cached weights are created from the shard's own statistics, they ignore
+ * the distributed statistics of dfs_query_then_fetch searches. Disabled
+ * unless {@link #CACHE_SIZE} is set.
+ */
+public class FeatureWeightCache extends AbstractComponent {
+    public static final Setting<Integer> CACHE_SIZE = Setting.intSetting("ltr.feature_weight_cache.size", 0, 0,
+            Setting.Property.NodeScope);
+
+    // null when disabled
+    private final Cache<Key, Weight> _cache;
+    // readers we listen to the close of
+    private final Set<IndexReader> _readers = ConcurrentHashMap.newKeySet();
+
+    public FeatureWeightCache(Settings settings) {
+        super(settings);
+        int size = CACHE_SIZE.get(settings);
+        _cache = size > 0 ? CacheBuilder.<Key, Weight>builder().setMaximumWeight(size).build() : null;
+    }
+
+    public boolean isEnabled() {
+        return _cache != null;
+    }
+
+    /**
+     * The normalized weight of feature on the reader of searcher
+     */
+    Weight weight(IndexSearcher searcher, Query feature, boolean needsScores) throws IOException {
+        assert isEnabled();
+        IndexReader reader = searcher.getIndexReader();
+        Similarity similarity = searcher.getSimilarity(true);
+        Key key = new Key(reader, feature, needsScores, similarity);
+        Weight weight = _cache.get(key);
+        if (weight == null) {
+            if (_readers.add(reader)) {
+                reader.addReaderClosedListener(this::invalidate);
+            }
+            // a searcher of our own: the weight must not hold on to the request's searcher, its profiler or its stats
+            IndexSearcher shardSearcher = new IndexSearcher(reader);
+            shardSearcher.setSimilarity(similarity);
+            shardSearcher.setQueryCache(null);
+            weight = shardSearcher.createWeight(feature.rewrite(reader), needsScores);
+            LtrQuery.normalizeFeature(weight, shardSearcher.getSimilarity(needsScores));
+            // two requests may race to create the same weight, either can be kept
+            _cache.put(key, weight);
+        }
+        return weight;
+    }
+
+    private void invalidate(IndexReader reader) {
+        _readers.remove(reader);
+        List<Key> keys = new ArrayList<>();
+        for (Key key : _cache.keys()) {
+            if (key.reader == reader) {
+                keys.add(key);
+            }
+        }
+        for (Key key : keys) {
+            _cache.invalidate(key);
+        }
+    }
+
+    public int count() {
+        return _cache == null ? 0 : _cache.count();
+    }
+
+    public Cache.CacheStats cacheStats() {
+        return _cache == null ? new Cache.CacheStats(0, 0, 0) : _cache.stats();
+    }
+
+    private static class Key {
+        final IndexReader reader;
+        final Query feature;
+        final boolean needsScores;
+        final Similarity similarity;
+
+        Key(IndexReader reader, Query feature, boolean needsScores, Similarity similarity) {
+            this.reader = reader;
+            this.feature = feature;
+            this.needsScores = needsScores;
+            this.similarity = similarity;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return reader == other.reader && similarity == other.similarity &&
+                    needsScores == other.needsScores && feature.equals(other.feature);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(reader), feature, needsScores, System.identityHashCode(similarity));
+        }
+    }
+}
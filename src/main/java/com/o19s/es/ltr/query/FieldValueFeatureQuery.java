@@ -0,0 +1,206 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.query;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+import org.elasticsearch.common.lucene.search.function.FieldValueFactorFunction;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.SortedNumericDoubleValues;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A feature reading the value of a numeric field straight from doc values,
+ * without the query stack of a function_score. Documents without a value
+ * score the missing value, or don't match the feature when there is none.
+ * Multi-valued fields score their smallest value.
+ */
+public class FieldValueFeatureQuery extends Query {
+    private final String _field;
+    // null when the field is not mapped
+    private final IndexNumericFieldData _fieldData;
+    private final Double _missing;
+    private final FieldValueFactorFunction.Modifier _modifier;
+
+    public FieldValueFeatureQuery(String field, IndexNumericFieldData fieldData, Double missing,
+                                  FieldValueFactorFunction.Modifier modifier) {
+        _field = Objects.requireNonNull(field);
+        _fieldData = fieldData;
+        _missing = missing;
+        _modifier = Objects.requireNonNull(modifier);
+    }
+
+    public String getField() {
+        return _field;
+    }
+
+    public Double getMissing() {
+        return _missing;
+    }
+
+    public FieldValueFactorFunction.Modifier getModifier() {
+        return _modifier;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        return new FieldValueWeight();
+    }
+
+    @Override
+    public String toString(String field) {
+        return "field_value(" + _field + ", missing=" + _missing + ", modifier=" + _modifier + ")";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!sameClassAs(other)) {
+            return false;
+        }
+        FieldValueFeatureQuery that = (FieldValueFeatureQuery) other;
+        return _field.equals(that._field) && Objects.equals(_missing, that._missing) && _modifier == that._modifier;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(classHash(), _field, _missing, _modifier);
+    }
+
+    private class FieldValueWeight extends Weight {
+        private float _boost = 1.0F;
+
+        FieldValueWeight() {
+            super(FieldValueFeatureQuery.this);
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            FieldValueScorer scorer = scorer(context);
+            if (scorer == null || scorer._all.advance(doc) != doc || !scorer.matches(doc)) {
+                return Explanation.noMatch("No value for field [" + _field + "]");
+            }
+            return Explanation.match(scorer.score(), "value of field [" + _field + "], missing [" + _missing +
+                    "], modifier [" + _modifier + "], boost [" + _boost + "]");
+        }
+
+        /**
+         * Values are used as they are, they are not normalized with the other clauses of the query
+         */
+        @Override
+        public float getValueForNormalization() throws IOException {
+            return 0.0F;
+        }
+
+        @Override
+        public void normalize(float norm, float boost) {
+            _boost = boost;
+        }
+
+        @Override
+        public FieldValueScorer scorer(LeafReaderContext context) throws IOException {
+            SortedNumericDoubleValues values = _fieldData == null ? null : _fieldData.load(context).getDoubleValues();
+            if (values == null && _missing == null) {
+                return null;
+            }
+            return new FieldValueScorer(this, values, context.reader().maxDoc(), _boost);
+        }
+    }
+
+    private class FieldValueScorer extends Scorer {
+        // null when the field is not mapped, every document gets the missing value
+        private final SortedNumericDoubleValues _values;
+        private final DocIdSetIterator _all;
+        private final TwoPhaseIterator _twoPhase;
+        private final float _boost;
+
+        FieldValueScorer(Weight weight, SortedNumericDoubleValues values, int maxDoc, float boost) {
+            super(weight);
+            _values = values;
+            _all = DocIdSetIterator.all(maxDoc);
+            _boost = boost;
+            if (_missing == null) {
+                // only documents with a value match
+                _twoPhase = new TwoPhaseIterator(_all) {
+                    @Override
+                    public boolean matches() throws IOException {
+                        return FieldValueScorer.this.matches(_all.docID());
+                    }
+
+                    @Override
+                    public float matchCost() {
+                        return 1.0F;
+                    }
+                };
+            } else {
+                _twoPhase = null;
+            }
+        }
+
+        boolean matches(int doc) {
+            if (_missing != null) {
+                return true;
+            }
+            _values.setDocument(doc);
+            return _values.count() > 0;
+        }
+
+        @Override
+        public int docID() {
+            return _all.docID();
+        }
+
+        @Override
+        public float score() throws IOException {
+            double value;
+            if (_values == null) {
+                value = _missing;
+            } else {
+                _values.setDocument(docID());
+                value = _values.count() > 0 ? _values.valueAt(0) : _missing;
+            }
+            return _boost * (float) _modifier.apply(value);
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return 1;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return _twoPhase == null ? _all : TwoPhaseIterator.asDocIdSetIterator(_twoPhase);
+        }
+
+        @Override
+        public TwoPhaseIterator twoPhaseIterator() {
+            return _twoPhase;
+        }
+    }
+}
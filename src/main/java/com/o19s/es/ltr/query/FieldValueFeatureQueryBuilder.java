@@ -0,0 +1,163 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.query;
+
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.lucene.search.function.FieldValueFactorFunction;
+import org.elasticsearch.common.xcontent.ObjectParser;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryShardContext;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * A feature of an ltr query reading a numeric field from doc values:
+ *
+ * { "ltr_field_value": { "field": "popularity", "missing": 0, "modifier": "log1p" } }
+ *
+ * The modifiers are those of the field_value_factor function.
+ */
+public class FieldValueFeatureQueryBuilder extends AbstractQueryBuilder<FieldValueFeatureQueryBuilder> {
+    public static final String NAME = "ltr_field_value";
+    private static final ObjectParser<FieldValueFeatureQueryBuilder, QueryParseContext> PARSER;
+
+    String _field;
+    Double _missing;
+    FieldValueFactorFunction.Modifier _modifier;
+
+    static {
+        PARSER = new ObjectParser<>(NAME, FieldValueFeatureQueryBuilder::new);
+        declareStandardFields(PARSER);
+        PARSER.declareString(FieldValueFeatureQueryBuilder::field, new ParseField("field"));
+        PARSER.declareDouble(FieldValueFeatureQueryBuilder::missing, new ParseField("missing"));
+        PARSER.declareString((builder, modifier) -> builder.modifier(FieldValueFactorFunction.Modifier.fromString(modifier)),
+                new ParseField("modifier"));
+    }
+
+    public FieldValueFeatureQueryBuilder() {
+    }
+
+    public FieldValueFeatureQueryBuilder(String field) {
+        _field = field;
+    }
+
+    public FieldValueFeatureQueryBuilder(StreamInput in) throws IOException {
+        super(in);
+        _field = in.readString();
+        if (in.readBoolean()) {
+            _missing = in.readDouble();
+        }
+        String modifier = in.readOptionalString();
+        _modifier = modifier == null ? null : FieldValueFactorFunction.Modifier.fromString(modifier);
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(_field);
+        out.writeBoolean(_missing != null);
+        if (_missing != null) {
+            out.writeDouble(_missing);
+        }
+        out.writeOptionalString(_modifier == null ? null : _modifier.toString());
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        printBoostAndQueryName(builder);
+        builder.field("field", _field);
+        if (_missing != null) {
+            builder.field("missing", _missing);
+        }
+        if (_modifier != null) {
+            builder.field("modifier", _modifier.toString());
+        }
+        builder.endObject();
+    }
+
+    public static FieldValueFeatureQueryBuilder fromXContent(QueryParseContext parseContext) throws IOException {
+        final FieldValueFeatureQueryBuilder builder;
+        try {
+            builder = PARSER.apply(parseContext.parser(), parseContext);
+        } catch (IllegalArgumentException e) {
+            throw new ParsingException(parseContext.parser().getTokenLocation(), e.getMessage(), e);
+        }
+        if (builder._field == null) {
+            throw new ParsingException(parseContext.parser().getTokenLocation(), "[" + NAME + "] query requires a field");
+        }
+        return builder;
+    }
+
+    @Override
+    protected Query doToQuery(QueryShardContext context) throws IOException {
+        MappedFieldType fieldType = context.fieldMapper(_field);
+        IndexNumericFieldData fieldData = null;
+        if (fieldType != null) {
+            IndexFieldData<?> indexFieldData = context.getForField(fieldType);
+            if (!(indexFieldData instanceof IndexNumericFieldData)) {
+                throw new IllegalArgumentException("[" + NAME + "] field [" + _field + "] is not numeric");
+            }
+            fieldData = (IndexNumericFieldData) indexFieldData;
+        }
+        return new FieldValueFeatureQuery(_field, fieldData, _missing,
+                _modifier == null ? FieldValueFactorFunction.Modifier.NONE : _modifier);
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(_field, _missing, _modifier);
+    }
+
+    @Override
+    protected boolean doEquals(FieldValueFeatureQueryBuilder other) {
+        return Objects.equals(_field, other._field) &&
+                Objects.equals(_missing, other._missing) &&
+                Objects.equals(_modifier, other._modifier);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+
+    public String field() {return _field;}
+    public final FieldValueFeatureQueryBuilder field(String field) {
+        _field = field;
+        return this;
+    }
+
+    public Double missing() {return _missing;}
+    public final FieldValueFeatureQueryBuilder missing(Double missing) {
+        _missing = missing;
+        return this;
+    }
+
+    public FieldValueFactorFunction.Modifier modifier() {return _modifier;}
+    public final FieldValueFeatureQueryBuilder modifier(FieldValueFactorFunction.Modifier modifier) {
+        _modifier = modifier;
+        return this;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.query;
+
+import ciir.umass.edu.learning.DataPoint;
+import ciir.umass.edu.utilities.RankLibError;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Feature vector of the current document of an {@link LtrScorer}, a feature
+ * is only scored when the model first reads it and is cached for the rest of
+ * the document. Tree models only pay for the features on each tree's path.
+ */
+class LazyDataPoint extends DataPoint {
+    private final LtrScorer _scorer;
+    private final int _numFeatures;
+    private int _doc = -1;
+    // a cached value is current if its stamp is the current generation
+    private final int[] _stamps;
+    private int _generation = 1;
+
+    LazyDataPoint(LtrScorer scorer, int numFeatures) {
+        super();
+        _scorer = scorer;
+        _numFeatures = numFeatures;
+        this.fVals = new float[numFeatures + 1]; // RankLib features are 1 based
+        _stamps = new int[numFeatures + 1];
+    }
+
+    /**
+     * Forget the cached values, features will be read from doc
+     */
+    void reset(int doc) {
+        _doc = doc;
+        if (_generation == Integer.MAX_VALUE) {
+            Arrays.fill(_stamps, 0);
+            _generation = 0;
+        }
+        _generation++;
+    }
+
+    /**
+     * @return true if the feature was scored since the last reset
+     */
+    boolean isComputed(int fid) {
+        return _stamps[fid] == _generation;
+    }
+
+    public float getFeatureValue(int fid) {
+        if (fid <= 0 || fid > _numFeatures) {
+            throw RankLibError.create("Error in LazyDataPoint::getFeatureValue(): requesting unspecified feature, fid=" + fid);
+        }
+        if (_stamps[fid] != _generation) {
+            try {
+                this.fVals[fid] = _scorer.featureValue(fid - 1, _doc);
+            } catch (IOException e) {
+                // RankLib's API doesn't allow checked exceptions, LtrScorer unwraps it
+                throw new UncheckedIOException(e);
+            }
+            _stamps[fid] = _generation;
+        }
+        return this.fVals[fid];
+    }
+
+    public void setFeatureValue(int fid, float fval) {
+        if (fid <= 0 || fid > _numFeatures) {
+            throw RankLibError.create("Error in LazyDataPoint::setFeatureValue(): feature (id=" + fid + ") not found.");
+        }
+        this.fVals[fid] = fval;
+        _stamps[fid] = _generation;
+    }
+
+    public void setFeatureVector(float[] dfVals) {
+        throw new UnsupportedOperationException("LazyDataPoint cannot be set from a dense vector");
+    }
+
+    /**
+     * Models reading the whole vector need every feature scored
+     */
+    public float[] getFeatureVector() {
+        for (int fid = 1; fid <= _numFeatures; fid++) {
+            getFeatureValue(fid);
+        }
+        return this.fVals;
+    }
+}
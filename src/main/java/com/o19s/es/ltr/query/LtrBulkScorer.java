@@ -0,0 +1,257 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.query;
+
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.stats.LtrStats;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Scores documents by blocks: the features of up to {@link #BLOCK_SIZE}
+ * documents are gathered in a column-major matrix, the whole block is
+ * evaluated by the model at once and only then collected.
+ *
+ * With an evaluation pool, blocks are evaluated there while the search
+ * thread reads the features of the next block. The pool is bounded, a
+ * search is rejected rather than queued without limit when it is full.
+ */
+public class LtrBulkScorer extends BulkScorer {
+    public static final int BLOCK_SIZE = 128;
+
+    private final LtrScorer _scorer;
+    private final LtrRanker _rankModel;
+    private final int _numFeatures;
+    private final BlockScorer _blockScorer;
+    // null when stats are not collected
+    private final LtrStats.ModelStats _stats;
+    // null to evaluate blocks on the search thread
+    private final ExecutorService _evaluator;
+    // null when blocks are not accounted
+    private final LtrCircuitBreaker _breaker;
+    // allocated on the first call to score, once accounted by the breaker
+    private Block[] _blocks;
+
+    LtrBulkScorer(LtrScorer scorer) {
+        this(scorer, null, null);
+    }
+
+    /**
+     * @param evaluator when not null, blocks are evaluated on this pool
+     * @param breaker when not null, accounts the memory of the blocks while scoring
+     */
+    LtrBulkScorer(LtrScorer scorer, ExecutorService evaluator, LtrCircuitBreaker breaker) {
+        _scorer = scorer;
+        _rankModel = scorer.rankModel();
+        _numFeatures = scorer.numFeatures();
+        _blockScorer = new BlockScorer(scorer.getWeight());
+        _stats = scorer.stats();
+        _evaluator = evaluator;
+        _breaker = breaker;
+    }
+
+    @Override
+    public int score(LeafCollector collector, Bits acceptDocs, int min, int max) throws IOException {
+        int numBlocks = _evaluator == null ? 1 : 2;
+        long bytes = numBlocks * LtrCircuitBreaker.matrixBytes(_numFeatures + 2, BLOCK_SIZE);
+        if (_breaker != null) {
+            _breaker.addEstimateBytesAndMaybeBreak(bytes, "ltr feature blocks");
+        }
+        try {
+            if (_blocks == null) {
+                _blocks = new Block[numBlocks];
+                for (int i = 0; i < numBlocks; i++) {
+                    _blocks[i] = new Block(_numFeatures);
+                }
+            }
+            collector.setScorer(_blockScorer);
+            DocIdSetIterator iterator = _scorer.iterator();
+            int doc = iterator.docID();
+            if (doc < min) {
+                doc = iterator.advance(min);
+            }
+            return _evaluator == null ? score(collector, iterator, doc, acceptDocs, max) :
+                    scoreOnPool(collector, iterator, doc, acceptDocs, max);
+        } finally {
+            if (_breaker != null) {
+                _breaker.addWithoutBreaking(-bytes);
+            }
+        }
+    }
+
+    private int score(LeafCollector collector, DocIdSetIterator iterator, int doc, Bits acceptDocs, int max)
+            throws IOException {
+        Block block = _blocks[0];
+        while (doc < max) {
+            doc = fill(block, iterator, doc, acceptDocs, max);
+            block.evaluate();
+            collect(collector, block);
+        }
+        return doc;
+    }
+
+    /**
+     * Read the features of a block while the previous one is evaluated on the pool
+     */
+    private int scoreOnPool(LeafCollector collector, DocIdSetIterator iterator, int doc, Bits acceptDocs, int max)
+            throws IOException {
+        Block block = _blocks[0];
+        Block previous = null;
+        Future<?> pending = null;
+        try {
+            while (doc < max) {
+                doc = fill(block, iterator, doc, acceptDocs, max);
+                // rejections fail the search, the pool is full of evaluations already
+                Future<?> evaluation = _evaluator.submit(block::evaluate);
+                if (previous != null) {
+                    await(pending);
+                    collect(collector, previous);
+                }
+                previous = block;
+                pending = evaluation;
+                block = block == _blocks[0] ? _blocks[1] : _blocks[0];
+            }
+            if (previous != null) {
+                await(pending);
+                pending = null;
+                collect(collector, previous);
+            }
+        } finally {
+            if (pending != null) {
+                // only reads the block, nothing to wait for
+                pending.cancel(false);
+            }
+        }
+        return doc;
+    }
+
+    private int fill(Block block, DocIdSetIterator iterator, int doc, Bits acceptDocs, int max) throws IOException {
+        block._numDocs = 0;
+        long start = _stats == null ? 0L : System.nanoTime();
+        // the features of the first document of each block are timed
+        _scorer.sampling(true);
+        while (doc < max && block._numDocs < BLOCK_SIZE) {
+            if (acceptDocs == null || acceptDocs.get(doc)) {
+                _scorer.fillModelFeatures(block._features, block._numDocs);
+                _scorer.sampling(false);
+                block._docs[block._numDocs++] = doc;
+            }
+            doc = iterator.nextDoc();
+        }
+        _scorer.sampling(false);
+        block._nanos = _stats == null ? 0L : System.nanoTime() - start;
+        return doc;
+    }
+
+    private void collect(LeafCollector collector, Block block) throws IOException {
+        if (_stats != null && block._numDocs > 0) {
+            _stats.docsScored(block._numDocs);
+            _stats.evaluated(block._numDocs, block._nanos);
+        }
+        for (int i = 0; i < block._numDocs; i++) {
+            _blockScorer._doc = block._docs[i];
+            _blockScorer._score = block._scores[i];
+            collector.collect(block._docs[i]);
+        }
+    }
+
+    private static void await(Future<?> evaluation) throws IOException {
+        try {
+            evaluation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticsearchException("Interrupted while evaluating a block", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ExceptionsHelper.convertToRuntime((Exception) cause);
+        }
+    }
+
+    /**
+     * The features, documents and scores of a block
+     */
+    private class Block {
+        final float[][] _features;
+        final int[] _docs = new int[BLOCK_SIZE];
+        final float[] _scores = new float[BLOCK_SIZE];
+        int _numDocs;
+        // time to read the features then evaluate the block, when sampled
+        long _nanos;
+
+        Block(int numFeatures) {
+            _features = new float[numFeatures][BLOCK_SIZE];
+        }
+
+        void evaluate() {
+            long start = _stats == null ? 0L : System.nanoTime();
+            _rankModel.score(_features, _numDocs, _scores);
+            if (_stats != null) {
+                _nanos += System.nanoTime() - start;
+            }
+        }
+    }
+
+    @Override
+    public long cost() {
+        return _scorer.iterator().cost();
+    }
+
+    /**
+     * Exposes the already computed score of the document being collected
+     */
+    static class BlockScorer extends Scorer {
+        int _doc = -1;
+        float _score;
+
+        BlockScorer(Weight weight) {
+            super(weight);
+        }
+
+        @Override
+        public int docID() {
+            return _doc;
+        }
+
+        @Override
+        public float score() throws IOException {
+            return _score;
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return 1;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.query;
+
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounts the memory used by the plugin on a node: compiled models and
+ * the feature matrices of requests being served. A request needing more
+ * than what is left under {@link #LIMIT} is rejected before allocating it.
+ */
+public class LtrCircuitBreaker extends AbstractComponent {
+    public static final String NAME = "ltr";
+    public static final Setting<ByteSizeValue> LIMIT = Setting.memorySizeSetting("ltr.breaker.limit", "10%",
+            Setting.Property.NodeScope);
+
+    private final long _limit;
+    private final AtomicLong _used = new AtomicLong();
+    private final AtomicLong _trippedCount = new AtomicLong();
+
+    public LtrCircuitBreaker(Settings settings) {
+        super(settings);
+        _limit = LIMIT.get(settings).getBytes();
+    }
+
+    /**
+     * Account bytes, unless it would take the memory used above the limit
+     *
+     * @throws CircuitBreakingException when the limit would be exceeded, nothing is accounted then
+     */
+    public void addEstimateBytesAndMaybeBreak(long bytes, String label) {
+        long used = _used.addAndGet(bytes);
+        if (bytes > 0 && used > _limit) {
+            _used.addAndGet(-bytes);
+            _trippedCount.incrementAndGet();
+            throw new CircuitBreakingException("[" + NAME + "] Data too large, data for [" + label + "] would be [" +
+                    used + "/" + new ByteSizeValue(used) + "], which is larger than the limit of [" +
+                    _limit + "/" + new ByteSizeValue(_limit) + "]", bytes, _limit);
+        }
+    }
+
+    /**
+     * Release, or account without checking the limit
+     */
+    public void addWithoutBreaking(long bytes) {
+        _used.addAndGet(bytes);
+    }
+
+    public long getUsed() {
+        return _used.get();
+    }
+
+    public long getLimit() {
+        return _limit;
+    }
+
+    public long getTrippedCount() {
+        return _trippedCount.get();
+    }
+
+    /**
+     * @return the bytes of a column-major float matrix
+     */
+    public static long matrixBytes(int numFeatures, int numDocs) {
+        return (long) Float.BYTES * numFeatures * numDocs;
+    }
+}
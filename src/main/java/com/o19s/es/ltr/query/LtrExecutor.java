@@ -0,0 +1,95 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.query;
+
+import org.apache.lucene.util.SetOnce;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The {@value #THREAD_POOL} thread pool of the plugin, on which models are
+ * evaluated unless {@link #EVALUATION_ISOLATED} is false, and on which ltr
+ * queries asking for it score large segments slice by slice.
+ *
+ * The pool is fixed and its queue bounded, its size and queue size are set
+ * with thread_pool.ltr.size and thread_pool.ltr.queue_size. Searches whose
+ * evaluation the pool rejects fail, slices it rejects are scored on the
+ * search thread.
+ */
+public class LtrExecutor extends AbstractComponent {
+    public static final String THREAD_POOL = "ltr";
+    public static final Setting<Integer> SLICE_SIZE = Setting.intSetting("ltr.parallel.slice_size", 64 * 1024, 1024,
+            Setting.Property.NodeScope);
+    public static final Setting<Boolean> EVALUATION_ISOLATED = Setting.boolSetting("ltr.evaluation.isolated", true,
+            Setting.Property.NodeScope);
+
+    private final SetOnce<ThreadPool> _threadPool = new SetOnce<>();
+    private final boolean _evaluationIsolated;
+    private final int _sliceSize;
+
+    public LtrExecutor(Settings settings) {
+        super(settings);
+        _evaluationIsolated = EVALUATION_ISOLATED.get(settings);
+        _sliceSize = SLICE_SIZE.get(settings);
+    }
+
+    public static ExecutorBuilder<?> executorBuilder(Settings settings) {
+        return new FixedExecutorBuilder(settings, THREAD_POOL, EsExecutors.numberOfProcessors(settings), 1000);
+    }
+
+    public void setThreadPool(ThreadPool threadPool) {
+        _threadPool.set(threadPool);
+    }
+
+    /**
+     * @return whether the thread pool is available, not before the node is built
+     */
+    public boolean isAvailable() {
+        return _threadPool.get() != null;
+    }
+
+    public ExecutorService executor() {
+        return _threadPool.get().executor(THREAD_POOL);
+    }
+
+    /**
+     * @return whether blocks of documents are evaluated on the pool rather than on the search thread
+     */
+    public boolean isEvaluationIsolated() {
+        return _evaluationIsolated;
+    }
+
+    /**
+     * @return the number of documents of a slice, segments up to this size are never split
+     */
+    public int sliceSize() {
+        return _sliceSize;
+    }
+
+    /**
+     * @return the number of slices of a segment scored at once, the size of the pool
+     */
+    public int parallelism() {
+        return _threadPool.get().info(THREAD_POOL).getMax();
+    }
+}
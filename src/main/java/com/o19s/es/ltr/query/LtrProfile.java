@@ -0,0 +1,193 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.query;
+
+import com.o19s.es.ltr.ranker.LtrRanker;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.elasticsearch.search.internal.ContextIndexSearcher;
+import org.elasticsearch.search.profile.query.ProfileWeight;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Queries only created when an ltr query is profiled, so the search profiler
+ * gives each feature a node named after it and the model its own node.
+ *
+ * The profiler times the queries whose weights are created through the searcher.
+ * Elasticsearch hands queries its wrapped searcher unless it profiles them (or
+ * uses dfs stats), so the ltr weight only creates a {@link ModelQuery} weight
+ * through its own searcher, and finds whether it is profiled by looking at what
+ * the searcher gave back.
+ */
+final class LtrProfile {
+    private LtrProfile() {
+    }
+
+    static boolean mayProfile(IndexSearcher searcher) {
+        return searcher instanceof ContextIndexSearcher;
+    }
+
+    static boolean isProfiled(Weight weight) {
+        return weight instanceof ProfileWeight;
+    }
+
+    /**
+     * @return the ltr scorer evaluating its model through the profiled model scorer
+     */
+    static LtrScorer ltrScorer(Scorer profiled) throws IOException {
+        // the profiler's scorer hides the model scorer but not its children
+        Collection<Scorer.ChildScorer> children = profiled.getChildren();
+        assert children.size() == 1 && children.iterator().next().child instanceof LtrScorer;
+        return (LtrScorer) children.iterator().next().child;
+    }
+
+    /**
+     * Names a feature in the profile, its query is profiled as its only child
+     */
+    static final class FeatureQuery extends Query {
+        private final String _name;
+        private final Query _query;
+
+        FeatureQuery(String name, Query query) {
+            _name = name;
+            _query = query;
+        }
+
+        @Override
+        public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+            return searcher.createWeight(_query, needsScores);
+        }
+
+        @Override
+        public String toString(String field) {
+            return _name;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return sameClassAs(other) && _name.equals(((FeatureQuery) other)._name)
+                    && _query.equals(((FeatureQuery) other)._query);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * classHash() + _name.hashCode()) + _query.hashCode();
+        }
+    }
+
+    /**
+     * Evaluation of the model, its scorer builds the ltr scorer and hands the
+     * score call back to it so the profiler times the model on its own
+     */
+    static final class ModelQuery extends Query {
+        private final LtrRanker _ranker;
+        private final LtrQuery.LtrWeight _weight;
+
+        ModelQuery(LtrRanker ranker, LtrQuery.LtrWeight weight) {
+            _ranker = ranker;
+            _weight = weight;
+        }
+
+        @Override
+        public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+            return new Weight(this) {
+                @Override
+                public void extractTerms(Set<Term> terms) {
+                }
+
+                @Override
+                public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+                    return Explanation.noMatch("The model is explained by the ltr query");
+                }
+
+                @Override
+                public float getValueForNormalization() throws IOException {
+                    return 0.0F;
+                }
+
+                @Override
+                public void normalize(float norm, float boost) {
+                }
+
+                @Override
+                public Scorer scorer(LeafReaderContext context) throws IOException {
+                    LtrScorer scorer = _weight.ltrScorer(context);
+                    return scorer == null ? null : new ModelScorer(this, scorer);
+                }
+            };
+        }
+
+        @Override
+        public String toString(String field) {
+            return "model:" + _ranker.name();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return sameClassAs(other) && _ranker.equals(((ModelQuery) other)._ranker);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * classHash() + Objects.hashCode(_ranker);
+        }
+    }
+
+    private static final class ModelScorer extends Scorer {
+        private final LtrScorer _scorer;
+
+        ModelScorer(Weight weight, LtrScorer scorer) {
+            super(weight);
+            _scorer = scorer;
+        }
+
+        @Override
+        public int docID() {
+            return _scorer.docID();
+        }
+
+        @Override
+        public float score() throws IOException {
+            return _scorer.evaluate();
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return 1;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return _scorer.iterator();
+        }
+
+        @Override
+        public Collection<ChildScorer> getChildren() {
+            return Collections.singletonList(new ChildScorer(_scorer, "MODEL"));
+        }
+    }
+}
@@ -18,12 +18,23 @@ package com.o19s.es.ltr.query;
 
 import ciir.umass.edu.learning.DataPoint;
 import ciir.umass.edu.learning.Ranker;
+import com.o19s.es.ltr.ranker.LinearRanker;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.RankLibRanker;
+import com.o19s.es.ltr.ranker.StaticScoreRanker;
+import com.o19s.es.ltr.stats.LtrStats;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Explanation;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
 import org.apache.lucene.search.Weight;
 import org.apache.lucene.search.similarities.Similarity;
 
@@ -32,9 +43,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 
 /**
@@ -45,11 +59,77 @@ public class LtrQuery extends Query {
 
     /* The subqueries */
     private final Query[] _features;
-    private final Ranker _rankModel;
+    private final LtrRanker _rankModel;
     private final String[] _featureNames;
+    /* Optional query restricting the documents to score */
+    private final Query _matchQuery;
+    /* Score every document, even those matching no feature */
+    private final boolean _allDocs;
+    /* Only look at the features matching a document */
+    private final boolean _sparse;
+    /* When positive, documents that can't make it in the top k may only get a bound of their score */
+    private final int _topK;
+    /* Node services the query runs with, not part of the query */
+    private final LtrQueryServices _services;
 
     public LtrQuery(Collection<Query> features, Ranker rankModel, Collection<String> featureNames) {
+        this(features, new RankLibRanker(rankModel), featureNames, null, true);
+    }
+
+    public LtrQuery(Collection<Query> features, Ranker rankModel, Collection<String> featureNames,
+                    Query matchQuery, boolean allDocs) {
+        this(features, new RankLibRanker(rankModel), featureNames, matchQuery, allDocs);
+    }
+
+    public LtrQuery(Collection<Query> features, LtrRanker rankModel, Collection<String> featureNames) {
+        this(features, rankModel, featureNames, null, true);
+    }
+
+    /**
+     * @param matchQuery when not null only documents matching this query are scored
+     * @param allDocs when matchQuery is null, score every document rather than only
+     *                those matching at least one feature. Needed for models whose
+     *                all-zero feature vector scores above zero.
+     */
+    public LtrQuery(Collection<Query> features, LtrRanker rankModel, Collection<String> featureNames,
+                    Query matchQuery, boolean allDocs) {
+        this(features, rankModel, featureNames, matchQuery, allDocs, false);
+    }
+
+    /**
+     * @param sparse score documents from the features they match only, rather than
+     *               from a dense vector of every feature. Worth it when documents
+     *               match few of many features.
+     */
+    public LtrQuery(Collection<Query> features, LtrRanker rankModel, Collection<String> featureNames,
+                    Query matchQuery, boolean allDocs, boolean sparse) {
+        this(features, rankModel, featureNames, matchQuery, allDocs, sparse, 0);
+    }
+
+    /**
+     * @param topK when positive, only the best topK documents of each segment are
+     *             guaranteed their exact score: models able to bound their score
+     *             stop evaluating documents that can't beat the current k-th
+     *             score, these get the bound instead. Not applied when sparse. The
+     *             bounds only keep the ranking right when this query's score alone
+     *             orders the hits, not when it is summed with other scores.
+     */
+    public LtrQuery(Collection<Query> features, LtrRanker rankModel, Collection<String> featureNames,
+                    Query matchQuery, boolean allDocs, boolean sparse, int topK) {
+        this(features, rankModel, featureNames, matchQuery, allDocs, sparse, topK, new LtrQueryServices());
+    }
+
+    /**
+     * @param services the node services the query runs with
+     */
+    public LtrQuery(Collection<Query> features, LtrRanker rankModel, Collection<String> featureNames,
+                    Query matchQuery, boolean allDocs, boolean sparse, int topK, LtrQueryServices services) {
         this._rankModel = rankModel;
+        this._matchQuery = matchQuery;
+        this._allDocs = allDocs;
+        this._sparse = sparse;
+        this._topK = topK;
+        this._services = Objects.requireNonNull(services);
         Objects.requireNonNull(features, "Collection of Querys must not be null");
 
         if (featureNames.size() != features.size()) {
@@ -72,6 +152,26 @@ public class LtrQuery extends Query {
         return Collections.unmodifiableList(Arrays.asList(_featureNames));
     }
 
+    public LtrRanker getRankModel() {
+        return _rankModel;
+    }
+
+    public Query getMatchQuery() {
+        return _matchQuery;
+    }
+
+    public boolean isAllDocs() {
+        return _allDocs;
+    }
+
+    public boolean isSparse() {
+        return _sparse;
+    }
+
+    public int getTopK() {
+        return _topK;
+    }
+
 
     @Override
     public boolean equals(Object other) {
@@ -80,7 +180,9 @@ public class LtrQuery extends Query {
     }
 
     private boolean equalsTo(LtrQuery other) {
-        return Arrays.equals(_features, other._features) && _rankModel.equals(other._rankModel);
+        return Arrays.equals(_features, other._features) && _rankModel.equals(other._rankModel) &&
+                Objects.equals(_matchQuery, other._matchQuery) && _allDocs == other._allDocs &&
+                _sparse == other._sparse && _topK == other._topK;
     }
 
 
@@ -89,6 +191,10 @@ public class LtrQuery extends Query {
         int h = classHash();
         h = 31 * h + Arrays.hashCode(_features);
         h = 31 * h + _rankModel.hashCode();
+        h = 31 * h + Objects.hashCode(_matchQuery);
+        h = 31 * h + Boolean.hashCode(_allDocs);
+        h = 31 * h + Boolean.hashCode(_sparse);
+        h = 31 * h + _topK;
         return h;
     }
 
@@ -96,29 +202,181 @@ public class LtrQuery extends Query {
     /** Create the Weight used to score us */
     @Override
     public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        if (_services.stats() != null) {
+            _services.stats().queried();
+        }
         return new LtrQuery.LtrWeight(searcher, needsScores, _featureNames);
     }
 
+    /**
+     * Extract the features of the given documents, features are only read for them
+     *
+     * @param docs top level docIDs, in ascending order
+     * @return column-major features, column i holds the features of docs[i]
+     */
+    public float[][] extractFeatures(IndexSearcher searcher, int[] docs) throws IOException {
+        LtrWeight weight = (LtrWeight) createWeight(searcher, true);
+        return weight.extractFeatures(searcher.getIndexReader().leaves(), docs);
+    }
+
 
     // ************************************************************************//
     // Weight: Modeled on
     protected class LtrWeight extends Weight {
         // The Weight's for our subqueries, in 1-1 correspondence with disjuncts
         protected final ArrayList<Weight> weights = new ArrayList<>(_features.length);
+        // Weight of the match query, null unless one was provided
+        protected final Weight matchWeight;
+        // Features reading the same postings share one scorer: _sources[i] is the
+        // feature whose scorer feeds feature i, _sources[i] == i for the others
+        private final int[] _sources;
+        private final boolean[] _shared;
+        // constant score features only read the matches of their source
+        private final boolean[] _constant;
 
         private final boolean _needsScores;
-        private Similarity _similarity;
         private String[] _names;
+        // time of each feature on sampled documents, null without stats
+        private final LtrStats.Timer[] _featureStats;
+        // weight of the model's node in the search profile, null unless profiled
+        private final Weight _modelWeight;
+        // linear models only: the 0-based features they weight, other features are never scored
+        private final int[] _linearFeatures;
+        // the 0-based features the model reads, null when it reads them all
+        private final boolean[] _weighted;
 
         protected LtrWeight(IndexSearcher searcher, boolean needsScores, String[] names) throws IOException {
             super(LtrQuery.this);
-            for (Query feature : _features) {
-                Query rewritten = feature.rewrite(searcher.getIndexReader());
-                weights.add(searcher.createWeight(rewritten, needsScores));
+            Similarity similarity = searcher.getSimilarity(needsScores);
+            _sources = new int[_features.length];
+            _shared = new boolean[_features.length];
+            _constant = new boolean[_features.length];
+            shareScorers();
+            Weight modelWeight = null;
+            if (needsScores && LtrProfile.mayProfile(searcher)) {
+                modelWeight = searcher.createWeight(new LtrProfile.ModelQuery(_rankModel, this), true);
+            }
+            boolean profiled = modelWeight != null && LtrProfile.isProfiled(modelWeight);
+            _modelWeight = profiled ? modelWeight : null;
+            if (_rankModel instanceof LinearRanker) {
+                int[] featureIds = ((LinearRanker) _rankModel).featureIds();
+                _weighted = weighted(featureIds);
+                _linearFeatures = new int[featureIds.length];
+                for (int i = 0; i < featureIds.length; i++) {
+                    _linearFeatures[i] = featureIds[i] - 1;
+                }
+            } else if (_rankModel instanceof StaticScoreRanker) {
+                // features only read by the static trees were evaluated at ingest time
+                _linearFeatures = null;
+                _weighted = weighted(((StaticScoreRanker) _rankModel).featureIds());
+            } else {
+                _linearFeatures = null;
+                _weighted = null;
+            }
+            for (int i = 0; i < _features.length; i++) {
+                Query feature = _features[i];
+                if (_sources[i] != i && !_constant[i]) {
+                    // the same query, weighted once
+                    weights.add(weights.get(_sources[i]));
+                } else if (profiled) {
+                    // cached weights would be hidden from the profiler
+                    Query rewritten = feature.rewrite(searcher.getIndexReader());
+                    Weight weight = searcher.createWeight(new LtrProfile.FeatureQuery(featureName(i), rewritten), needsScores);
+                    normalizeFeature(weight, similarity);
+                    weights.add(weight);
+                } else if (_services.weightCache() != null) {
+                    weights.add(_services.weightCache().weight(searcher, feature, needsScores));
+                } else {
+                    Query rewritten = feature.rewrite(searcher.getIndexReader());
+                    Weight weight = searcher.createWeight(rewritten, needsScores);
+                    normalizeFeature(weight, similarity);
+                    weights.add(weight);
+                }
+            }
+            if (_matchQuery != null) {
+                Query rewritten = _matchQuery.rewrite(searcher.getIndexReader());
+                matchWeight = searcher.createWeight(rewritten, false);
+            } else {
+                matchWeight = null;
             }
             this._names = names;
             this._needsScores = needsScores;
-            this._similarity = searcher.getSimilarity(needsScores);
+            LtrStats.ModelStats stats = stats();
+            if (stats != null) {
+                _featureStats = new LtrStats.Timer[_features.length];
+                for (int i = 0; i < _features.length; i++) {
+                    _featureStats[i] = stats.feature(featureName(i));
+                }
+            } else {
+                _featureStats = null;
+            }
+        }
+
+        private boolean[] weighted(int[] featureIds) {
+            boolean[] weighted = new boolean[_features.length];
+            for (int featureId : featureIds) {
+                if (featureId > _features.length) {
+                    throw new IllegalArgumentException("Model [" + _rankModel.name() + "] uses feature [" +
+                            featureId + "] but only [" + _features.length + "] features were provided");
+                }
+                weighted[featureId - 1] = true;
+            }
+            return weighted;
+        }
+
+        LtrStats.ModelStats stats() {
+            return _services.stats();
+        }
+
+        LtrCircuitBreaker breaker() {
+            return _services.breaker();
+        }
+
+        /**
+         * @return the 0-based features a linear model weights, in the order of its weights, null for other models
+         */
+        int[] linearFeatures() {
+            return _linearFeatures;
+        }
+
+        /**
+         * @return whether the model reads the 0-based feature idx
+         */
+        boolean isWeighted(int idx) {
+            return _weighted == null || _weighted[idx];
+        }
+
+        /**
+         * @return the timer of the 0-based feature idx, null without stats
+         */
+        LtrStats.Timer featureStats(int idx) {
+            return _featureStats == null ? null : _featureStats[idx];
+        }
+
+        /**
+         * Find the features that can be computed from the scorer of another feature:
+         * equal queries, and constant score queries over the query of another feature
+         */
+        private void shareScorers() {
+            Map<Query, Integer> firstIdx = new HashMap<>();
+            for (int i = 0; i < _features.length; i++) {
+                firstIdx.putIfAbsent(_features[i], i);
+            }
+            for (int i = 0; i < _features.length; i++) {
+                int source = firstIdx.get(_features[i]);
+                Query filter = constantScoreFilter(_features[i]);
+                if (source == i && filter != null) {
+                    Integer filterIdx = firstIdx.get(filter);
+                    if (filterIdx != null && constantScoreFilter(_features[filterIdx]) == null) {
+                        source = filterIdx;
+                        _constant[i] = true;
+                    }
+                }
+                _sources[i] = source;
+                if (source != i) {
+                    _shared[source] = true;
+                }
+            }
         }
 
         @Override
@@ -126,6 +384,9 @@ public class LtrQuery extends Query {
             for (Weight weight : weights) {
                 weight.extractTerms(terms);
             }
+            if (matchWeight != null) {
+                matchWeight.extractTerms(terms);
+            }
         }
 
         public String getName(int featureIdx) {
@@ -136,7 +397,26 @@ public class LtrQuery extends Query {
 
         @Override
         public Explanation explain(LeafReaderContext context, int doc) throws IOException {
-            // TODO
+            if (matchWeight != null && !matchWeight.explain(context, doc).isMatch()) {
+                return Explanation.noMatch("Document does not match the match query");
+            }
+            Explanation explanation = explainModel(context, doc);
+            if (matchWeight == null && !_allDocs) {
+                for (Explanation feature : explanation.getDetails()) {
+                    if (feature.isMatch()) {
+                        return explanation;
+                    }
+                }
+                return Explanation.noMatch("Document matches no feature", explanation.getDetails());
+            }
+            return explanation;
+        }
+
+        /**
+         * Explain the model score of a document, whether or not the
+         * query would have matched it
+         */
+        Explanation explainModel(LeafReaderContext context, int doc) throws IOException {
             List<Explanation> subs = new ArrayList<>(weights.size());
 
             DataPoint d = new DenseProgramaticDataPoint(weights.size());
@@ -159,23 +439,13 @@ public class LtrQuery extends Query {
                 d.setFeatureValue(featureIdx, featureVal);
                 featureIdx++;
             }
-            float modelScore = (float) _rankModel.eval(d);
+            float modelScore = _rankModel.score(d);
             return Explanation.match(modelScore, " Model: " + _rankModel.name() + " using features:", subs);
         }
 
         @Override
         public float getValueForNormalization() throws IOException {
-            // run indexsearcher's normalization procedure directly on each
-            // subweight
-            for (Weight weight: weights) {
-                float valueToNormalize = weight.getValueForNormalization();
-                float norm = _similarity.queryNorm(valueToNormalize);
-                if (Float.isInfinite(norm) || Float.isNaN(norm)) {
-                    norm = 1.0f;
-                }
-                weight.normalize(norm, 1.0f);
-
-            }
+            // the feature weights are normalized on their own once created
             return 0.0f;
         }
 
@@ -184,31 +454,193 @@ public class LtrQuery extends Query {
 
         }
 
-        @Override
-        public Scorer scorer(LeafReaderContext context) throws IOException {
+        /**
+         * One scorer per feature, features matching no document of the segment get a {@link NoopScorer}
+         */
+        List<Scorer> featureScorers(LeafReaderContext context) throws IOException {
+            return featureScorers(context, false);
+        }
+
+        /**
+         * Extract the features of the given documents, whether or not the query would have matched them
+         *
+         * @param docs top level docIDs, in ascending order
+         * @return column-major features, column i holds the features of docs[i]
+         */
+        float[][] extractFeatures(List<LeafReaderContext> leaves, int[] docs) throws IOException {
+            float[][] features = new float[weights.size()][docs.length];
+            int docUpto = 0;
+            while (docUpto < docs.length) {
+                LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docs[docUpto], leaves));
+                int endDoc = leaf.docBase + leaf.reader().maxDoc();
+                LtrScorer scorer = new LtrScorer(this, featureScorers(leaf), DocIdSetIterator.all(leaf.reader().maxDoc()),
+                        _rankModel);
+                while (docUpto < docs.length && docs[docUpto] < endDoc) {
+                    scorer.fillFeatures(docs[docUpto] - leaf.docBase, features, docUpto);
+                    docUpto++;
+                }
+            }
+            return features;
+        }
+
+        /**
+         * @param modelOnly features the model doesn't read get a {@link NoopScorer} too
+         */
+        private List<Scorer> featureScorers(LeafReaderContext context, boolean modelOnly) throws IOException {
+            Scorer[] sourceScorers = new Scorer[weights.size()];
+            boolean[] built = new boolean[weights.size()];
+            for (int i = 0; i < sourceScorers.length; i++) {
+                int source = _sources[i];
+                if ((!modelOnly || isWeighted(i)) && !built[source]) {
+                    sourceScorers[source] = weights.get(source).scorer(context);
+                    built[source] = true;
+                }
+            }
             List<Scorer> scorers = new ArrayList<>(weights.size());
-            for (Weight w : weights) {
+            for (int i = 0; i < sourceScorers.length; i++) {
+                Weight w = weights.get(i);
                 // we will advance() subscorers
-                Scorer subScorer = w.scorer(context);
+                Scorer subScorer = modelOnly && !isWeighted(i) ? null : sourceScorers[_sources[i]];
+                if (subScorer != null && _shared[_sources[i]]) {
+                    // every feature of the group reads the shared scorer through its own view, none directly
+                    if (_constant[i]) {
+                        float constantScore = constantScore(w, context);
+                        subScorer = Float.isNaN(constantScore) ? null : new SharedFeatureScorer(w, subScorer, constantScore);
+                    } else {
+                        subScorer = new SharedFeatureScorer(w, subScorer);
+                    }
+                }
                 if (subScorer != null) {
                     scorers.add(subScorer);
                 } else {
                     scorers.add(new NoopScorer(w, context.reader().maxDoc()));
                 }
             }
+            return scorers;
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            if (_modelWeight == null) {
+                return ltrScorer(context);
+            }
+            // the profiled model scorer builds the ltr scorer, which evaluates through it
+            Scorer modelScorer = _modelWeight.scorer(context);
+            if (modelScorer == null) {
+                return null;
+            }
+            LtrScorer scorer = LtrProfile.ltrScorer(modelScorer);
+            scorer.profileModel(modelScorer);
+            return scorer;
+        }
+
+        LtrScorer ltrScorer(LeafReaderContext context) throws IOException {
+            // without the disjunction of the features to match, features the model doesn't read are useless
+            List<Scorer> scorers = featureScorers(context, matchWeight != null || _allDocs);
+            DocIdSetIterator[] matchingIters = new DocIdSetIterator[scorers.size()];
+            boolean anyMatchingIter = false;
+            for (int i = 0; i < scorers.size(); i++) {
+                Scorer scorer = scorers.get(i);
+                if (!(scorer instanceof NoopScorer)) {
+                    // the disjunction is approximate, features are verified by the ltr scorer
+                    matchingIters[i] = LtrScorer.approximation(scorer);
+                    anyMatchingIter = true;
+                }
+            }
             if (scorers.isEmpty()) {
                 // no sub-scorers had any documents
                 return null;
+            }
+
+            DocIdSetIterator iterator;
+            TwoPhaseIterator twoPhase = null;
+            if (matchWeight != null) {
+                Scorer matchScorer = matchWeight.scorer(context);
+                if (matchScorer == null) {
+                    return null;
+                }
+                twoPhase = matchScorer.twoPhaseIterator();
+                iterator = LtrScorer.approximation(matchScorer);
+            } else if (_allDocs) {
+                iterator = DocIdSetIterator.all(context.reader().maxDoc());
+            } else if (!anyMatchingIter) {
+                // no feature matches any document in this segment
+                return null;
             } else {
-                return new LtrScorer(this, scorers, _needsScores, context, _rankModel);
+                iterator = new FeatureDisjunctionIterator(matchingIters);
+            }
+            return new LtrScorer(this, scorers, iterator, twoPhase, _rankModel, _sparse, _topK);
+        }
+
+        @Override
+        public BulkScorer bulkScorer(LeafReaderContext context) throws IOException {
+            if (_topK > 0 && !_sparse) {
+                // the cascade raises its threshold document by document, blocks would defeat it
+                return super.bulkScorer(context);
+            }
+            LtrScorer scorer = (LtrScorer) scorer(context);
+            if (scorer == null) {
+                return null;
+            }
+            LtrExecutor slicer = _services.slicer();
+            if (slicer != null && slicer.isAvailable() && context.reader().maxDoc() > slicer.sliceSize()) {
+                return new ParallelLtrBulkScorer(this, context, scorer, slicer);
             }
+            LtrExecutor evaluator = _services.evaluator();
+            ExecutorService pool = evaluator != null && evaluator.isAvailable() ? evaluator.executor() : null;
+            return new LtrBulkScorer(scorer, pool, breaker());
+        }
+    }
+
+    /**
+     * @return the name of the 0-based feature idx, or its position for unnamed features
+     */
+    private String featureName(int idx) {
+        return _featureNames[idx] != null ? _featureNames[idx] : "feature_" + (idx + 1);
+    }
+
+    /**
+     * @return the filter of a constant score feature, null for other features
+     */
+    private static Query constantScoreFilter(Query feature) {
+        while (feature instanceof BoostQuery) {
+            feature = ((BoostQuery) feature).getQuery();
+        }
+        return feature instanceof ConstantScoreQuery ? ((ConstantScoreQuery) feature).getQuery() : null;
+    }
+
+    /**
+     * The score of a constant score feature on a segment, read from its first
+     * match rather than by iterating its filter, NaN if it matches nothing
+     */
+    private static float constantScore(Weight weight, LeafReaderContext context) throws IOException {
+        Scorer scorer = weight.scorer(context);
+        if (scorer == null || scorer.iterator().nextDoc() == DocIdSetIterator.NO_MORE_DOCS) {
+            return Float.NaN;
+        }
+        return scorer.score();
+    }
+
+    /**
+     * Run indexsearcher's normalization procedure directly on a feature's weight,
+     * features are never normalized together
+     */
+    static void normalizeFeature(Weight weight, Similarity similarity) throws IOException {
+        float valueToNormalize = weight.getValueForNormalization();
+        float norm = similarity.queryNorm(valueToNormalize);
+        if (Float.isInfinite(norm) || Float.isNaN(norm)) {
+            norm = 1.0f;
         }
+        weight.normalize(norm, 1.0f);
     }
 
     public String toString(String field) {
         String rVal = "LTR model: " + _rankModel.name() + "(";
-        for (Query query: _features) {
-            rVal += _features.toString();
+        for (int i = 0; i < _features.length; i++) {
+            if (i > 0) {
+                rVal += ", ";
+            }
+            rVal += _features[i].toString(field);
         }
         return rVal + ")";
     };
@@ -17,7 +17,11 @@
 
 package com.o19s.es.ltr.query;
 
-import ciir.umass.edu.learning.Ranker;
+import com.o19s.es.ltr.ranker.LinearRanker;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.StaticScoreRanker;
+import com.o19s.es.ltr.ranker.TreeEnsembleRanker;
+import com.o19s.es.ltr.store.ModelStore;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.elasticsearch.common.ParseField;
@@ -29,9 +33,11 @@ import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.index.query.AbstractQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryRewriteContext;
 import org.elasticsearch.index.query.QueryShardContext;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptContext;
+import org.elasticsearch.script.ScriptType;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -41,11 +47,37 @@ import java.util.Objects;
 public class LtrQueryBuilder extends AbstractQueryBuilder<LtrQueryBuilder> {
     public static final String NAME = "ltr";
     private static final ObjectParser<LtrQueryBuilder, QueryParseContext> PARSER;
+    private static final ObjectParser<LtrQueryBuilder, QueryParseContext> STORED_MODEL_PARSER;
+    private static final ObjectParser<LtrQueryBuilder, QueryParseContext> STATIC_SCORE_PARSER;
+    // name of the feature reading the static score
+    public static final String STATIC_SCORE_FEATURE = "_static_score";
 
     Script _rankLibScript;
     List<QueryBuilder> _features;
+    QueryBuilder _matchQuery;
+    Boolean _allDocs;
+    Boolean _sparse;
+    Integer _topK;
+    Boolean _parallel;
+    String _modelName;
+    Long _modelVersion;
+    // field holding the score of the trees reading only _staticFeatures, computed at ingest time
+    String _staticScoreField;
+    List<Integer> _staticFeatures;
+    // node-level model store, caches and pool, not part of the query
+    LtrServices _services;
+    // the stored model, fetched when rewriting the query and split by the static features, not part of the query
+    LtrRanker _storedModel;
 
     static {
+        STORED_MODEL_PARSER = new ObjectParser<>("stored_model");
+        STORED_MODEL_PARSER.declareString(LtrQueryBuilder::modelName, new ParseField("name"));
+        STORED_MODEL_PARSER.declareLong(LtrQueryBuilder::modelVersion, new ParseField("version"));
+
+        STATIC_SCORE_PARSER = new ObjectParser<>("static_score");
+        STATIC_SCORE_PARSER.declareString(LtrQueryBuilder::staticScoreField, new ParseField("field"));
+        STATIC_SCORE_PARSER.declareIntArray(LtrQueryBuilder::staticFeatures, new ParseField("features"));
+
         PARSER = new ObjectParser<>(NAME, LtrQueryBuilder::new);
         declareStandardFields(PARSER);
         PARSER.declareObjectArray(
@@ -55,6 +87,20 @@ public class LtrQueryBuilder extends AbstractQueryBuilder<LtrQueryBuilder> {
         PARSER.declareField(
                 (parser, ltr, context) -> ltr.rankerScript(Script.parse(parser, "ranklib")),
                 new ParseField("model"), ObjectParser.ValueType.OBJECT_OR_STRING);
+        PARSER.declareField(
+                (parser, ltr, context) -> STORED_MODEL_PARSER.parse(parser, ltr, context),
+                new ParseField("stored_model"), ObjectParser.ValueType.OBJECT);
+        PARSER.declareField(
+                (parser, ltr, context) -> STATIC_SCORE_PARSER.parse(parser, ltr, context),
+                new ParseField("static_score"), ObjectParser.ValueType.OBJECT);
+        PARSER.declareObject(
+                (ltr, match) -> ltr.matchQuery(match),
+                (parser, context) -> context.parseInnerQueryBuilder().get(),
+                new ParseField("match"));
+        PARSER.declareBoolean(LtrQueryBuilder::allDocs, new ParseField("all_docs"));
+        PARSER.declareBoolean(LtrQueryBuilder::sparse, new ParseField("sparse"));
+        PARSER.declareInt(LtrQueryBuilder::topK, new ParseField("top_k"));
+        PARSER.declareBoolean(LtrQueryBuilder::parallel, new ParseField("parallel"));
     }
 
 
@@ -62,16 +108,54 @@ public class LtrQueryBuilder extends AbstractQueryBuilder<LtrQueryBuilder> {
     }
 
     public LtrQueryBuilder(StreamInput in) throws IOException {
+        this(in, null);
+    }
+
+    public LtrQueryBuilder(StreamInput in, LtrServices services) throws IOException {
         super(in);
         _features = readQueries(in);
-        _rankLibScript = new Script(in);
+        _rankLibScript = in.readOptionalWriteable(Script::new);
+        _modelName = in.readOptionalString();
+        if (_modelName != null) {
+            _modelVersion = in.readVLong();
+        }
+        _services = services;
+        _matchQuery = in.readOptionalNamedWriteable(QueryBuilder.class);
+        _allDocs = in.readOptionalBoolean();
+        _sparse = in.readOptionalBoolean();
+        _topK = in.readOptionalVInt();
+        _parallel = in.readOptionalBoolean();
+        _staticScoreField = in.readOptionalString();
+        if (_staticScoreField != null) {
+            int numStaticFeatures = in.readVInt();
+            _staticFeatures = new ArrayList<>(numStaticFeatures);
+            for (int i = 0; i < numStaticFeatures; i++) {
+                _staticFeatures.add(in.readVInt());
+            }
+        }
     }
 
     @Override
     protected void doWriteTo(StreamOutput out) throws IOException {
         // only the superclass has state
         writeQueries(out, _features);
-        _rankLibScript.writeTo(out);
+        out.writeOptionalWriteable(_rankLibScript);
+        out.writeOptionalString(_modelName);
+        if (_modelName != null) {
+            out.writeVLong(_modelVersion);
+        }
+        out.writeOptionalNamedWriteable(_matchQuery);
+        out.writeOptionalBoolean(_allDocs);
+        out.writeOptionalBoolean(_sparse);
+        out.writeOptionalVInt(_topK);
+        out.writeOptionalBoolean(_parallel);
+        out.writeOptionalString(_staticScoreField);
+        if (_staticScoreField != null) {
+            out.writeVInt(_staticFeatures.size());
+            for (int featureId : _staticFeatures) {
+                out.writeVInt(featureId);
+            }
+        }
     }
 
     @Override
@@ -79,7 +163,37 @@ public class LtrQueryBuilder extends AbstractQueryBuilder<LtrQueryBuilder> {
         builder.startObject(NAME);
         printBoostAndQueryName(builder);
         doXArrayContent("features", this._features, builder, params);
-        builder.field("model", _rankLibScript);
+        if (_rankLibScript != null) {
+            builder.field("model", _rankLibScript);
+        }
+        if (_modelName != null) {
+            builder.startObject("stored_model");
+            builder.field("name", _modelName);
+            builder.field("version", _modelVersion);
+            builder.endObject();
+        }
+        if (_matchQuery != null) {
+            builder.field("match");
+            _matchQuery.toXContent(builder, params);
+        }
+        if (_allDocs != null) {
+            builder.field("all_docs", _allDocs);
+        }
+        if (_sparse != null) {
+            builder.field("sparse", _sparse);
+        }
+        if (_topK != null) {
+            builder.field("top_k", _topK);
+        }
+        if (_parallel != null) {
+            builder.field("parallel", _parallel);
+        }
+        if (_staticScoreField != null) {
+            builder.startObject("static_score");
+            builder.field("field", _staticScoreField);
+            builder.field("features", _staticFeatures);
+            builder.endObject();
+        }
         builder.endObject();
     }
 
@@ -96,22 +210,68 @@ public class LtrQueryBuilder extends AbstractQueryBuilder<LtrQueryBuilder> {
     }
 
     public static LtrQueryBuilder fromXContent(QueryParseContext parseContext) throws IOException {
+        return fromXContent(parseContext, null);
+    }
+
+    /**
+     * @param services where stored models are loaded from, feature weights cached and slices scored
+     */
+    public static LtrQueryBuilder fromXContent(QueryParseContext parseContext, LtrServices services) throws IOException {
         final LtrQueryBuilder builder;
         try {
             builder = PARSER.apply(parseContext.parser(), parseContext);
         } catch (IllegalArgumentException e) {
             throw new ParsingException(parseContext.parser().getTokenLocation(), e.getMessage(), e);
         }
-        if (builder._rankLibScript == null) {
+        if (builder._rankLibScript == null && builder._modelName == null) {
             throw new ParsingException(parseContext.parser().getTokenLocation(),
                     "[ltr] query requires a model, none specified");
         }
+        if (builder._rankLibScript != null && builder._modelName != null) {
+            throw new ParsingException(parseContext.parser().getTokenLocation(),
+                    "[ltr] query requires either a model or a stored_model, not both");
+        }
+        if (builder._modelName != null && builder._modelVersion == null) {
+            throw new ParsingException(parseContext.parser().getTokenLocation(),
+                    "[ltr] query requires the version of stored_model [" + builder._modelName + "]");
+        }
+        if (builder._staticScoreField != null || builder._staticFeatures != null) {
+            if (builder._staticScoreField == null || builder._staticFeatures == null) {
+                throw new ParsingException(parseContext.parser().getTokenLocation(),
+                        "[ltr] query requires both the field and the features of static_score");
+            }
+            for (int featureId : builder._staticFeatures) {
+                if (featureId <= 0) {
+                    throw new ParsingException(parseContext.parser().getTokenLocation(),
+                            "[ltr] query requires positive static_score features, got [" + featureId + "]");
+                }
+            }
+        }
+        builder._services = services;
+        if (builder._matchQuery != null && Boolean.TRUE.equals(builder._allDocs)) {
+            throw new ParsingException(parseContext.parser().getTokenLocation(),
+                    "[ltr] query cannot score all docs when a match query is specified");
+        }
+        if (builder._topK != null) {
+            if (builder._topK <= 0) {
+                throw new ParsingException(parseContext.parser().getTokenLocation(),
+                        "[ltr] query requires a positive top_k, got [" + builder._topK + "]");
+            }
+            if (Boolean.TRUE.equals(builder._sparse)) {
+                throw new ParsingException(parseContext.parser().getTokenLocation(),
+                        "[ltr] query cannot use top_k on sparse feature vectors");
+            }
+            if (Boolean.TRUE.equals(builder._parallel)) {
+                throw new ParsingException(parseContext.parser().getTokenLocation(),
+                        "[ltr] query cannot use top_k in parallel, the cascade is per segment");
+            }
+        }
         return builder;
     }
 
     @Override
     protected Query doToQuery(QueryShardContext context) throws IOException {
-        if (_features == null || _rankLibScript == null) {
+        if (_features == null || (_rankLibScript == null && _modelName == null)) {
             return new MatchAllDocsQuery();
         }
         List<String> featureNames = new ArrayList<String>(_features.size());
@@ -120,22 +280,143 @@ public class LtrQueryBuilder extends AbstractQueryBuilder<LtrQueryBuilder> {
             asLQueries.add(query.toQuery(context));
             featureNames.add(query.queryName());
         }
-        // pull model out of script
-        RankLibScriptEngine.RankLibExecutableScript rankerScript =
-                (RankLibScriptEngine.RankLibExecutableScript)context.getExecutableScript(_rankLibScript, ScriptContext.Standard.SEARCH);
+        Query matchQuery = _matchQuery != null ? _matchQuery.toQuery(context) : null;
+        boolean allDocs = _allDocs == null || _allDocs;
+        boolean sparse = _sparse != null && _sparse;
+        int topK = _topK == null ? 0 : _topK;
+        LtrRanker ranker;
+        if (_storedModel != null) {
+            // already split by the static features
+            ranker = _storedModel;
+        } else {
+            if (_modelName != null) {
+                // not rewritten first
+                ranker = loadStoredModel(context);
+            } else {
+                // pull model out of script
+                RankLibScriptEngine.RankLibExecutableScript rankerScript =
+                        (RankLibScriptEngine.RankLibExecutableScript)context.getExecutableScript(_rankLibScript,
+                                ScriptContext.Standard.SEARCH);
+                ranker = (LtrRanker)rankerScript.run();
+            }
+            if (_staticScoreField != null) {
+                ranker = staticScoreRanker(ranker, _features.size());
+            }
+        }
+        if (topK > 0 && ranker instanceof LinearRanker) {
+            throw new IllegalArgumentException("[ltr] query cannot use top_k with linear model [" + ranker.name() +
+                    "], only tree ensembles can cascade");
+        }
+        if (_staticScoreField != null) {
+            asLQueries.add(new FieldValueFeatureQueryBuilder(_staticScoreField).missing(0.0).toQuery(context));
+            featureNames.add(STATIC_SCORE_FEATURE);
+        }
+
+        if (_services == null) {
+            return new LtrQuery(asLQueries, ranker, featureNames, matchQuery, allDocs, sparse, topK);
+        }
+        LtrQueryServices services = new LtrQueryServices()
+                .stats(_services.stats().model(modelId()))
+                .breaker(_services.breaker());
+        if (_services.weightCache().isEnabled()) {
+            services.weightCache(_services.weightCache());
+        }
+        if (_parallel != null && _parallel) {
+            services.slicer(_services.executor());
+        }
+        if (_services.executor().isEvaluationIsolated()) {
+            services.evaluator(_services.executor());
+        }
+        return new LtrQuery(asLQueries, ranker, featureNames, matchQuery, allDocs, sparse, topK, services);
+    }
+
+    /**
+     * Fetch the stored model when rewriting, like the lookup of a terms query, so
+     * building the Lucene query doesn't wait on the model store
+     */
+    @Override
+    protected QueryBuilder doRewrite(QueryRewriteContext context) throws IOException {
+        if (_modelName == null || _features == null || _storedModel != null) {
+            return this;
+        }
+        LtrQueryBuilder rewritten = new LtrQueryBuilder();
+        rewritten._rankLibScript = _rankLibScript;
+        rewritten._features = _features;
+        rewritten._matchQuery = _matchQuery;
+        rewritten._allDocs = _allDocs;
+        rewritten._sparse = _sparse;
+        rewritten._topK = _topK;
+        rewritten._parallel = _parallel;
+        rewritten._modelName = _modelName;
+        rewritten._modelVersion = _modelVersion;
+        rewritten._staticScoreField = _staticScoreField;
+        rewritten._staticFeatures = _staticFeatures;
+        rewritten._services = _services;
+        LtrRanker storedModel = loadStoredModel(context);
+        rewritten._storedModel = _staticScoreField == null ? storedModel : staticScoreRanker(storedModel, _features.size());
+        return rewritten.boost(boost()).queryName(queryName());
+    }
+
+    private LtrRanker loadStoredModel(QueryRewriteContext context) {
+        if (_services == null) {
+            throw new IllegalStateException("[ltr] query cannot load stored_model [" + _modelName + "], no model store");
+        }
+        return _services.modelStore().load(context.getClient(), _modelName, _modelVersion);
+    }
+
+    /**
+     * Only evaluate the trees reading features other than the static ones, the
+     * static score is read as an extra feature after the declared ones
+     */
+    private LtrRanker staticScoreRanker(LtrRanker ranker, int numFeatures) {
+        if (!(ranker instanceof TreeEnsembleRanker)) {
+            throw new IllegalArgumentException("[ltr] query can only use a static_score with tree ensembles, model [" +
+                    ranker.name() + "] is not one");
+        }
+        int[] staticFeatures = new int[_staticFeatures.size()];
+        for (int i = 0; i < staticFeatures.length; i++) {
+            staticFeatures[i] = _staticFeatures.get(i);
+            if (staticFeatures[i] > numFeatures) {
+                throw new IllegalArgumentException("[ltr] query has no feature [" + staticFeatures[i] + "] in static_score, only [" +
+                        numFeatures + "] features were provided");
+            }
+        }
+        return new StaticScoreRanker((TreeEnsembleRanker) ranker, staticFeatures, numFeatures + 1);
+    }
 
-        return new LtrQuery(asLQueries, (Ranker)rankerScript.run(), featureNames);
+    /**
+     * @return how the model is reported in the stats: the stored model and its version, the script id,
+     *         or the type of model for inline scripts
+     */
+    private String modelId() {
+        if (_modelName != null) {
+            return ModelStore.id(_modelName, _modelVersion);
+        }
+        if (_rankLibScript.getType() != ScriptType.INLINE) {
+            return _rankLibScript.getIdOrCode();
+        }
+        return "_inline";
     }
 
     @Override
     protected int doHashCode() {
-        return Objects.hash(_rankLibScript, _features);
+        return Objects.hash(_rankLibScript, _features, _matchQuery, _allDocs, _sparse, _topK, _modelName, _modelVersion,
+                _parallel, _staticScoreField, _staticFeatures);
     }
 
     @Override
     protected boolean doEquals(LtrQueryBuilder other) {
         return Objects.equals(_rankLibScript, other._rankLibScript) &&
-                Objects.equals(_features, other._features);
+                Objects.equals(_features, other._features) &&
+                Objects.equals(_matchQuery, other._matchQuery) &&
+                Objects.equals(_allDocs, other._allDocs) &&
+                Objects.equals(_sparse, other._sparse) &&
+                Objects.equals(_topK, other._topK) &&
+                Objects.equals(_modelName, other._modelName) &&
+                Objects.equals(_modelVersion, other._modelVersion) &&
+                Objects.equals(_parallel, other._parallel) &&
+                Objects.equals(_staticScoreField, other._staticScoreField) &&
+                Objects.equals(_staticFeatures, other._staticFeatures);
     }
 
     @Override
@@ -157,5 +438,59 @@ public class LtrQueryBuilder extends AbstractQueryBuilder<LtrQueryBuilder> {
         return this;
     }
 
+    public QueryBuilder matchQuery() {return _matchQuery;}
+    public final LtrQueryBuilder matchQuery(QueryBuilder matchQuery) {
+        _matchQuery = matchQuery;
+        return this;
+    }
+
+    public Boolean allDocs() {return _allDocs;}
+    public final LtrQueryBuilder allDocs(Boolean allDocs) {
+        _allDocs = allDocs;
+        return this;
+    }
+
+    public Boolean sparse() {return _sparse;}
+    public final LtrQueryBuilder sparse(Boolean sparse) {
+        _sparse = sparse;
+        return this;
+    }
+
+    public String modelName() {return _modelName;}
+    public final LtrQueryBuilder modelName(String modelName) {
+        _modelName = modelName;
+        return this;
+    }
+
+    public Long modelVersion() {return _modelVersion;}
+    public final LtrQueryBuilder modelVersion(Long modelVersion) {
+        _modelVersion = modelVersion;
+        return this;
+    }
+
+    public Integer topK() {return _topK;}
+    public final LtrQueryBuilder topK(Integer topK) {
+        _topK = topK;
+        return this;
+    }
+
+    public Boolean parallel() {return _parallel;}
+    public final LtrQueryBuilder parallel(Boolean parallel) {
+        _parallel = parallel;
+        return this;
+    }
+
+    public String staticScoreField() {return _staticScoreField;}
+    public final LtrQueryBuilder staticScoreField(String staticScoreField) {
+        _staticScoreField = staticScoreField;
+        return this;
+    }
+
+    public List<Integer> staticFeatures() {return _staticFeatures;}
+    public final LtrQueryBuilder staticFeatures(List<Integer> staticFeatures) {
+        _staticFeatures = staticFeatures;
+        return this;
+    }
+
 
 }
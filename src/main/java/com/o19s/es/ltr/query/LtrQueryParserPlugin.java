@@ -16,28 +16,88 @@
  */
 package com.o19s.es.ltr.query;
 
-import ciir.umass.edu.learning.Ranker;
-import ciir.umass.edu.learning.RankerFactory;
+import com.o19s.es.ltr.ingest.StaticScoreProcessor;
+import com.o19s.es.ltr.logging.LoggingFetchSubPhase;
+import com.o19s.es.ltr.logging.LoggingSearchExtBuilder;
+import com.o19s.es.ltr.logging.RestLogFeaturesAction;
+import com.o19s.es.ltr.stats.LtrStatsAction;
+import com.o19s.es.ltr.stats.RestLtrStatsAction;
+import com.o19s.es.ltr.stats.TransportLtrStatsAction;
+import com.o19s.es.ltr.store.ModelStore;
+import com.o19s.es.ltr.store.RestStoreModelAction;
+import com.o19s.es.ltr.warmup.LtrWarmer;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.index.IndexModule;
 import org.elasticsearch.index.query.QueryParseContext;
 import org.elasticsearch.index.query.QueryParser;
+import org.elasticsearch.ingest.Processor;
+import org.elasticsearch.plugins.ActionPlugin;
+import org.elasticsearch.plugins.IngestPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.ScriptPlugin;
 import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
 import org.elasticsearch.script.ScriptEngineService;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.fetch.FetchSubPhase;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Supplier;
 
 import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
 
-public class LtrQueryParserPlugin extends Plugin implements SearchPlugin, ScriptPlugin {
+public class LtrQueryParserPlugin extends Plugin implements SearchPlugin, ScriptPlugin, ActionPlugin, IngestPlugin {
+    private final LtrServices _services;
+    private final LtrWarmer _warmer;
 
-    public LtrQueryParserPlugin() {
+    public LtrQueryParserPlugin(Settings settings) {
+        _services = new LtrServices(settings);
+        _warmer = new LtrWarmer(settings, _services);
+    }
 
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService, ScriptService scriptService,
+                                               NamedXContentRegistry xContentRegistry) {
+        _services.executor().setThreadPool(threadPool);
+        _services.setClient(client);
+        _warmer.start(threadPool, xContentRegistry);
+        // injected into the stats transport action
+        return singletonList(_services);
+    }
+
+    @Override
+    public void onIndexModule(IndexModule indexModule) {
+        indexModule.addIndexEventListener(_warmer.listener());
+        indexModule.addSearchOperationListener(_services.stats().flushListener());
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        return singletonList(LtrExecutor.executorBuilder(settings));
     }
 
     @Override
@@ -45,12 +105,16 @@ public class LtrQueryParserPlugin extends Plugin implements SearchPlugin, Script
         QueryParser<LtrQueryBuilder> qp = new QueryParser<LtrQueryBuilder>() {
             @Override
             public Optional<LtrQueryBuilder> fromXContent(QueryParseContext parseContext) throws IOException {
-                Optional<LtrQueryBuilder> opt;
-                return Optional.of(LtrQueryBuilder.fromXContent(parseContext));
+                return Optional.of(LtrQueryBuilder.fromXContent(parseContext, _services));
 
             }
         };
-        return singletonList(new QuerySpec<>(LtrQueryBuilder.NAME, LtrQueryBuilder::new, qp));
+        QueryParser<FieldValueFeatureQueryBuilder> fieldValueParser =
+                (parseContext) -> Optional.of(FieldValueFeatureQueryBuilder.fromXContent(parseContext));
+        return Arrays.<QuerySpec<?>>asList(
+                new QuerySpec<LtrQueryBuilder>(LtrQueryBuilder.NAME, (in) -> new LtrQueryBuilder(in, _services), qp),
+                new QuerySpec<FieldValueFeatureQueryBuilder>(FieldValueFeatureQueryBuilder.NAME,
+                        FieldValueFeatureQueryBuilder::new, fieldValueParser));
     }
 
     @Override
@@ -58,7 +122,50 @@ public class LtrQueryParserPlugin extends Plugin implements SearchPlugin, Script
      * Returns a {@link ScriptEngineService} instance or <code>null</code> if this plugin doesn't add a new script engine
      */
     public ScriptEngineService getScriptEngineService(Settings settings) {
-        return new RankLibScriptEngine(settings);
+        return new RankLibScriptEngine(settings, _services.stats());
+    }
+
+    @Override
+    public List<SearchExtSpec<?>> getSearchExts() {
+        return singletonList(new SearchExtSpec<>(LoggingSearchExtBuilder.NAME, LoggingSearchExtBuilder::new,
+                LoggingSearchExtBuilder::parse));
+    }
+
+    @Override
+    public List<FetchSubPhase> getFetchSubPhases(FetchPhaseConstructionContext context) {
+        return singletonList(new LoggingFetchSubPhase(_services.breaker()));
+    }
+
+    @Override
+    public Map<String, Processor.Factory> getProcessors(Processor.Parameters parameters) {
+        return singletonMap(StaticScoreProcessor.TYPE, new StaticScoreProcessor.Factory(_services));
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController, ClusterSettings clusterSettings,
+                                             IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster) {
+        return Arrays.asList(new RestStoreModelAction(settings, restController, _services.modelStore(),
+                        _services.executor()),
+                new RestLogFeaturesAction(settings, restController),
+                new RestLtrStatsAction(settings, restController));
+    }
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return singletonList(new ActionHandler<>(LtrStatsAction.INSTANCE, TransportLtrStatsAction.class));
+    }
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        List<Setting<?>> settings = new ArrayList<>(ModelStore.getSettings());
+        settings.add(FeatureWeightCache.CACHE_SIZE);
+        settings.add(LtrExecutor.SLICE_SIZE);
+        settings.add(LtrExecutor.EVALUATION_ISOLATED);
+        settings.add(LtrCircuitBreaker.LIMIT);
+        settings.addAll(LtrWarmer.getSettings());
+        return settings;
     }
 
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.query;
+
+import com.o19s.es.ltr.stats.LtrStats;
+
+/**
+ * The node services a single ltr query runs with, picked from {@link LtrServices}
+ * by the query builder. None of them are part of the query, each is optional and
+ * only set before the query is built.
+ */
+public class LtrQueryServices {
+    private FeatureWeightCache _weightCache;
+    private LtrExecutor _slicer;
+    private LtrStats.ModelStats _stats;
+    private LtrExecutor _evaluator;
+    private LtrCircuitBreaker _breaker;
+
+    /**
+     * @param weightCache the weights of the features are taken from this cache
+     */
+    public LtrQueryServices weightCache(FeatureWeightCache weightCache) {
+        _weightCache = weightCache;
+        return this;
+    }
+
+    public FeatureWeightCache weightCache() {
+        return _weightCache;
+    }
+
+    /**
+     * @param slicer segments larger than a slice are scored by slices on this executor's
+     *               thread pool. Not applied with topK, the cascade is per segment.
+     */
+    public LtrQueryServices slicer(LtrExecutor slicer) {
+        _slicer = slicer;
+        return this;
+    }
+
+    public LtrExecutor slicer() {
+        return _slicer;
+    }
+
+    /**
+     * @param stats queries, scored documents and sampled evaluation times are counted there
+     */
+    public LtrQueryServices stats(LtrStats.ModelStats stats) {
+        _stats = stats;
+        return this;
+    }
+
+    public LtrStats.ModelStats stats() {
+        return _stats;
+    }
+
+    /**
+     * @param evaluator documents scored by blocks are evaluated on this executor's thread pool
+     */
+    public LtrQueryServices evaluator(LtrExecutor evaluator) {
+        _evaluator = evaluator;
+        return this;
+    }
+
+    public LtrExecutor evaluator() {
+        return _evaluator;
+    }
+
+    /**
+     * @param breaker accounts the feature blocks of the documents being scored
+     */
+    public LtrQueryServices breaker(LtrCircuitBreaker breaker) {
+        _breaker = breaker;
+        return this;
+    }
+
+    public LtrCircuitBreaker breaker() {
+        return _breaker;
+    }
+}
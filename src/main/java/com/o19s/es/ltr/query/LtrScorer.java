@@ -16,14 +16,18 @@
  */
 package com.o19s.es.ltr.query;
 
-import ciir.umass.edu.learning.DataPoint;
-import ciir.umass.edu.learning.Ranker;
-import org.apache.lucene.index.LeafReaderContext;
+import com.o19s.es.ltr.ranker.LinearRanker;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.SparseDataPoint;
+import com.o19s.es.ltr.stats.LtrStats;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
 import org.apache.lucene.search.Weight;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -31,43 +35,369 @@ import java.util.List;
  */
 public class LtrScorer extends Scorer {
 
-    Ranker _rankModel;
-    List<Scorer> _subScorers;
-    DocIdSetIterator _allDocsIter;
+    LtrRanker _rankModel;
+    Scorer[] _subScorers;
+    // approximations of the sub-scorers, documents are only verified once a feature is read
+    DocIdSetIterator[] _subIterators;
+    TwoPhaseIterator[] _subTwoPhases;
+    // last document each two-phase feature was verified on, and whether it matched
+    int[] _verifiedDocs;
+    boolean[] _verified;
+    DocIdSetIterator _approximation;
+    TwoPhaseIterator _twoPhase;
+    DocIdSetIterator _iterator;
+    // Reused for every document of this segment, scoring must not allocate
+    LazyDataPoint _features;
+    // Sparse mode only: finds the features matching a document and holds their values
+    FeatureDisjunctionIterator _matchingFeatures;
+    SparseDataPoint _sparseFeatures;
+    int[] _matchingIdx;
+    // Cascade only: the best scores of this segment, documents that can't beat them are not fully evaluated
+    TopScores _topScores;
+    // with top scores, the last scored document and its score: each document is offered once
+    int _scoredDoc = -1;
+    float _docScore;
+    // Linear models only: their dot product is computed straight from the sub-scorers,
+    // features without a weight are never scored
+    int[] _linearFeatures;
+    float[] _linearWeights;
+    float _linearBias;
+    LtrQuery.LtrWeight _ltrWeight;
+    // Node-level stats of the model, null when not collected
+    LtrStats.ModelStats _stats;
+    // counter of the scoring thread, set on the first document
+    LtrStats.PendingDocs _pendingDocs;
+    // documents left before the next sampled one, features are timed while sampling
+    int _untilSample = 1;
+    boolean _sampling;
+    // when profiled, the model is evaluated through this scorer so the profiler times it apart from the features
+    Scorer _modelScorer;
+    // document whose features were all read before profiling the model
+    int _prefetchedDoc = -1;
 
-    protected LtrScorer(Weight weight, List<Scorer> subScorers, boolean needsScores,
-                        LeafReaderContext context, Ranker rankModel) {
+    protected LtrScorer(Weight weight, List<Scorer> subScorers, DocIdSetIterator iterator, LtrRanker rankModel) {
+        this(weight, subScorers, iterator, rankModel, false);
+    }
+
+    protected LtrScorer(Weight weight, List<Scorer> subScorers, DocIdSetIterator iterator, LtrRanker rankModel,
+                        boolean sparse) {
+        this(weight, subScorers, iterator, rankModel, sparse, 0);
+    }
+
+    /**
+     * @param iterator drives the documents to score: every document, the
+     *                 disjunction of the sub-scorers or a match query
+     * @param sparse only look at the features matching each document, and score
+     *               them as a sparse vector
+     * @param topK when positive, documents that can't make it in the top k of
+     *             the segment may get an upper bound of their score instead
+     *             of their score. Ignored when sparse.
+     */
+    protected LtrScorer(Weight weight, List<Scorer> subScorers, DocIdSetIterator iterator, LtrRanker rankModel,
+                        boolean sparse, int topK) {
+        this(weight, subScorers, iterator, null, rankModel, sparse, topK);
+    }
+
+    /**
+     * @param iterator drives the documents to score, when approximate twoPhase verifies its documents
+     * @param twoPhase the two-phase iterator of a match query, null otherwise. The ltr scorer is also
+     *                 approximate when iterator is the disjunction of the approximations of features
+     */
+    protected LtrScorer(Weight weight, List<Scorer> subScorers, DocIdSetIterator iterator, TwoPhaseIterator twoPhase,
+                        LtrRanker rankModel, boolean sparse, int topK) {
         super(weight);
         this._rankModel = rankModel;
-        _subScorers = subScorers;
-        _allDocsIter = DocIdSetIterator.all(context.reader().maxDoc());
+        _subScorers = subScorers.toArray(new Scorer[subScorers.size()]);
+        _subIterators = new DocIdSetIterator[_subScorers.length];
+        _subTwoPhases = new TwoPhaseIterator[_subScorers.length];
+        _verifiedDocs = new int[_subScorers.length];
+        _verified = new boolean[_subScorers.length];
+        boolean anyTwoPhase = false;
+        for (int i = 0; i < _subScorers.length; i++) {
+            _subTwoPhases[i] = _subScorers[i].twoPhaseIterator();
+            _subIterators[i] = approximation(_subScorers[i]);
+            _verifiedDocs[i] = -1;
+            anyTwoPhase |= _subTwoPhases[i] != null;
+        }
+        _approximation = iterator;
+        if (twoPhase == null && anyTwoPhase && iterator instanceof FeatureDisjunctionIterator) {
+            twoPhase = new FeatureTwoPhaseIterator((FeatureDisjunctionIterator) iterator);
+        }
+        _twoPhase = twoPhase;
+        _iterator = twoPhase == null ? iterator : TwoPhaseIterator.asDocIdSetIterator(twoPhase);
+        _matchingIdx = new int[_subScorers.length];
+        if (sparse) {
+            if (iterator instanceof FeatureDisjunctionIterator) {
+                // already tracks which features are on the current document
+                _matchingFeatures = (FeatureDisjunctionIterator) iterator;
+            } else {
+                _matchingFeatures = new FeatureDisjunctionIterator(_subIterators);
+            }
+            _sparseFeatures = new SparseDataPoint(_subScorers.length);
+        } else {
+            _features = new LazyDataPoint(this, _subScorers.length);
+            if (topK > 0) {
+                _topScores = new TopScores(topK);
+            }
+        }
+        if (weight instanceof LtrQuery.LtrWeight) {
+            _ltrWeight = (LtrQuery.LtrWeight) weight;
+            _stats = _ltrWeight.stats();
+            if (_ltrWeight.linearFeatures() != null && rankModel instanceof LinearRanker) {
+                _linearFeatures = _ltrWeight.linearFeatures();
+                _linearWeights = ((LinearRanker) rankModel).weights();
+                _linearBias = ((LinearRanker) rankModel).bias();
+            }
+        }
     }
 
 
     @Override
     public float score() throws IOException {
-        DataPoint allScores = new DenseProgramaticDataPoint(_subScorers.size());
-        int featureIdx = 1; // RankLib is 1-based
-        for (Scorer scorer : _subScorers) {
-            if (scorer.docID() < docID()) {
-                scorer.iterator().advance(docID());
+        if (_stats == null) {
+            return scoreDoc();
+        }
+        if (_pendingDocs == null) {
+            _pendingDocs = _stats.pendingDocs();
+        }
+        if (_pendingDocs != null) {
+            _pendingDocs.increment();
+        } else {
+            _stats.docsScored(1);
+        }
+        if (--_untilSample > 0) {
+            return scoreDoc();
+        }
+        _untilSample = LtrStats.SAMPLE_INTERVAL;
+        _sampling = true;
+        long start = System.nanoTime();
+        try {
+            return scoreDoc();
+        } finally {
+            _stats.evaluated(1, System.nanoTime() - start);
+            _sampling = false;
+        }
+    }
+
+    private float scoreDoc() throws IOException {
+        if (_modelScorer == null) {
+            return evaluate();
+        }
+        if (_features != null && _linearFeatures == null) {
+            // read every feature first, they are timed on their own
+            _prefetchedDoc = docID();
+            _features.reset(_prefetchedDoc);
+            try {
+                _features.getFeatureVector();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
             }
-            float featureVal = 0.0f;
-            if (scorer.docID() == docID()) {
-                featureVal = scorer.score();
+        }
+        return _modelScorer.score();
+    }
+
+    /**
+     * Evaluate the model on the current document, reading the features it needs
+     */
+    float evaluate() throws IOException {
+        int doc = docID();
+        if (_matchingFeatures != null) {
+            int numMatching = matchingFeatures(doc);
+            _sparseFeatures.reset();
+            for (int i = 0; i < numMatching; i++) {
+                int featureIdx = _matchingIdx[i];
+                if (!_ltrWeight.isWeighted(featureIdx)) {
+                    continue;
+                }
+                // RankLib is 1-based
+                _sparseFeatures.setFeatureValue(featureIdx + 1, subScore(featureIdx));
+            }
+            return _rankModel.scoreSparse(_sparseFeatures);
+        }
+        if (_linearFeatures != null) {
+            float score = _linearBias;
+            for (int i = 0; i < _linearFeatures.length; i++) {
+                score += _linearWeights[i] * featureValue(_linearFeatures[i], doc);
+            }
+            return score;
+        }
+        if (_topScores != null) {
+            if (doc == _scoredDoc) {
+                return _docScore;
+            }
+            float threshold = _topScores.threshold();
+            float score = score(threshold);
+            if (score > threshold) {
+                _topScores.offer(score);
+            }
+            _scoredDoc = doc;
+            _docScore = score;
+            return score;
+        }
+        return score(Float.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Score the current document, the model may stop early and return an upper
+     * bound of the score once it can tell it won't be above threshold
+     */
+    float score(float threshold) throws IOException {
+        // features are only scored when the model reads them
+        if (docID() != _prefetchedDoc) {
+            _features.reset(docID());
+        }
+        try {
+            if (threshold == Float.NEGATIVE_INFINITY) {
+                return _rankModel.score(_features);
             }
-            //System.out.printf("Doc %d, feature %d, val %f\n", docID(), featureIdx, featureVal);
-            allScores.setFeatureValue(featureIdx, featureVal);
-            featureIdx++;
+            return _rankModel.score(_features, threshold);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        float score = (float)_rankModel.eval(allScores);
-        //System.out.printf("Doc %d, score %f\n", docID(), score);
+    }
+
+    /**
+     * Write the features the model reads of the current document in the given column
+     * of a column-major feature block, the rows of the other features are left as is
+     */
+    void fillModelFeatures(float[][] block, int column) throws IOException {
+        if (_linearFeatures == null || _matchingFeatures != null) {
+            fillFeatures(docID(), block, column);
+            return;
+        }
+        int doc = docID();
+        for (int featureIdx : _linearFeatures) {
+            block[featureIdx][column] = featureValue(featureIdx, doc);
+        }
+    }
+
+    /**
+     * Write the features of a document, at or after the last document
+     * whose features were read, in the given column of a feature block
+     */
+    void fillFeatures(int doc, float[][] block, int column) throws IOException {
+        if (_matchingFeatures != null) {
+            for (int i = 0; i < _subScorers.length; i++) {
+                block[i][column] = 0.0F;
+            }
+            int numMatching = matchingFeatures(doc);
+            for (int i = 0; i < numMatching; i++) {
+                block[_matchingIdx[i]][column] = subScore(_matchingIdx[i]);
+            }
+            return;
+        }
+        for (int i = 0; i < _subScorers.length; i++) {
+            block[i][column] = featureValue(i, doc);
+        }
+    }
+
+    /**
+     * Position the sub-scorers lagging behind doc and collect those matching it in _matchingIdx
+     */
+    private int matchingFeatures(int doc) throws IOException {
+        if (_matchingFeatures.docID() < doc) {
+            _matchingFeatures.advance(doc);
+        }
+        if (_matchingFeatures.docID() != doc) {
+            return 0;
+        }
+        int numCandidates = _matchingFeatures.matchingFeatures(_matchingIdx);
+        int numMatching = 0;
+        for (int i = 0; i < numCandidates; i++) {
+            if (verify(_matchingIdx[i], doc)) {
+                _matchingIdx[numMatching++] = _matchingIdx[i];
+            }
+        }
+        // the heap gives no order, models walk features by id
+        Arrays.sort(_matchingIdx, 0, numMatching);
+        return numMatching;
+    }
+
+    /**
+     * Have the model evaluated through a profiled scorer
+     */
+    void profileModel(Scorer modelScorer) {
+        _modelScorer = modelScorer;
+    }
+
+    /**
+     * Time the next features read, until sampling is turned off
+     */
+    void sampling(boolean sampling) {
+        _sampling = sampling && _stats != null;
+    }
+
+    LtrStats.ModelStats stats() {
+        return _stats;
+    }
+
+    private float subScore(int featureIdx) throws IOException {
+        if (!_sampling) {
+            return _subScorers[featureIdx].score();
+        }
+        long start = System.nanoTime();
+        float score = _subScorers[featureIdx].score();
+        _ltrWeight.featureStats(featureIdx).record(System.nanoTime() - start);
         return score;
     }
 
+    /**
+     * Score a feature on doc, at or after the last document it was read on
+     */
+    float featureValue(int featureIdx, int doc) throws IOException {
+        if (!_sampling) {
+            return readFeature(featureIdx, doc);
+        }
+        long start = System.nanoTime();
+        float value = readFeature(featureIdx, doc);
+        _ltrWeight.featureStats(featureIdx).record(System.nanoTime() - start);
+        return value;
+    }
+
+    private float readFeature(int featureIdx, int doc) throws IOException {
+        DocIdSetIterator subIterator = _subIterators[featureIdx];
+        int subDoc = subIterator.docID();
+        if (subDoc < doc) {
+            subDoc = subIterator.advance(doc);
+        }
+        if (subDoc == doc && verify(featureIdx, doc)) {
+            return _subScorers[featureIdx].score();
+        }
+        return 0.0F;
+    }
+
+    /**
+     * Whether a feature whose approximation is on doc really matches it,
+     * each feature is verified at most once per document
+     */
+    private boolean verify(int featureIdx, int doc) throws IOException {
+        TwoPhaseIterator twoPhase = _subTwoPhases[featureIdx];
+        if (twoPhase == null) {
+            return true;
+        }
+        if (_verifiedDocs[featureIdx] != doc) {
+            _verifiedDocs[featureIdx] = doc;
+            _verified[featureIdx] = twoPhase.matches();
+        }
+        return _verified[featureIdx];
+    }
+
+    static DocIdSetIterator approximation(Scorer scorer) {
+        TwoPhaseIterator twoPhase = scorer.twoPhaseIterator();
+        return twoPhase == null ? scorer.iterator() : twoPhase.approximation();
+    }
+
+    int numFeatures() {
+        return _subScorers.length;
+    }
+
+    LtrRanker rankModel() {
+        return _rankModel;
+    }
+
     @Override
     public int docID() {
-        return _allDocsIter.docID();
+        return _approximation.docID();
     }
 
     @Override
@@ -77,6 +407,50 @@ public class LtrScorer extends Scorer {
 
     @Override
     public DocIdSetIterator iterator() {
-        return _allDocsIter;
+        return _iterator;
+    }
+
+    @Override
+    public TwoPhaseIterator twoPhaseIterator() {
+        return _twoPhase;
+    }
+
+    /**
+     * Verifies the documents of the disjunction of the feature approximations: a document
+     * matches once one of the features on it does. The features verified here are not
+     * verified again when scoring.
+     */
+    private class FeatureTwoPhaseIterator extends TwoPhaseIterator {
+        private final FeatureDisjunctionIterator _disjunction;
+        private final float _matchCost;
+
+        FeatureTwoPhaseIterator(FeatureDisjunctionIterator disjunction) {
+            super(disjunction);
+            _disjunction = disjunction;
+            float matchCost = 0;
+            for (TwoPhaseIterator twoPhase : _subTwoPhases) {
+                if (twoPhase != null) {
+                    matchCost += twoPhase.matchCost();
+                }
+            }
+            _matchCost = matchCost;
+        }
+
+        @Override
+        public boolean matches() throws IOException {
+            int doc = _disjunction.docID();
+            int numCandidates = _disjunction.matchingFeatures(_matchingIdx);
+            for (int i = 0; i < numCandidates; i++) {
+                if (verify(_matchingIdx[i], doc)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public float matchCost() {
+            return _matchCost;
+        }
     }
 }
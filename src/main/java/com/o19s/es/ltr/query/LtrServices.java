@@ -0,0 +1,73 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.query;
+
+import com.o19s.es.ltr.stats.LtrStats;
+import com.o19s.es.ltr.store.ModelStore;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * The node-level services of the plugin ltr queries rely on, they are not part of the query
+ */
+public class LtrServices {
+    private final ModelStore _modelStore;
+    private final FeatureWeightCache _weightCache;
+    private final LtrExecutor _executor;
+    private final LtrCircuitBreaker _breaker;
+    private final LtrStats _stats;
+    // set once the node created its components, stored models are read with it outside of searches
+    private volatile Client _client;
+
+    public LtrServices(Settings settings) {
+        _breaker = new LtrCircuitBreaker(settings);
+        _modelStore = new ModelStore(settings, _breaker);
+        _weightCache = new FeatureWeightCache(settings);
+        _executor = new LtrExecutor(settings);
+        _stats = new LtrStats();
+    }
+
+    public ModelStore modelStore() {
+        return _modelStore;
+    }
+
+    public FeatureWeightCache weightCache() {
+        return _weightCache;
+    }
+
+    public LtrExecutor executor() {
+        return _executor;
+    }
+
+    public LtrCircuitBreaker breaker() {
+        return _breaker;
+    }
+
+    public LtrStats stats() {
+        return _stats;
+    }
+
+    public Client client() {
+        if (_client == null) {
+            throw new IllegalStateException("ltr services are not started, no client");
+        }
+        return _client;
+    }
+
+    public void setClient(Client client) {
+        _client = client;
+    }
+}
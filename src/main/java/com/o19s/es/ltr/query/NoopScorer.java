@@ -33,7 +33,7 @@ public class NoopScorer extends Scorer {
      */
     protected NoopScorer(Weight weight, int maxDocs) {
         super(weight);
-        _noopIter = DocIdSetIterator.all(maxDocs);
+        _noopIter = DocIdSetIterator.empty();
 
     }
 
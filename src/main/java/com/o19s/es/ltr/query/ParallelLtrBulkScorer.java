@@ -0,0 +1,267 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.query;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Scores a segment by slices of documents on the ltr thread pool, and
+ * collects them in order on the search thread once they are scored.
+ *
+ * Each slice gets its own scorer and is scored by blocks like with
+ * {@link LtrBulkScorer}. At most {@link LtrExecutor#parallelism()} slices
+ * are scored at once, the search thread scoring one of them itself, so
+ * the memory held by scored slices is bounded whatever the segment size.
+ *
+ * Slices are never interrupted, a thread interrupted while reading a file
+ * channel would close it for the whole shard. Slices left to score when
+ * the search fails stop at their next block instead.
+ */
+class ParallelLtrBulkScorer extends BulkScorer {
+    private final LtrQuery.LtrWeight _weight;
+    private final LeafReaderContext _context;
+    private final LtrExecutor _executor;
+    // scorer of the first slice, already created to know whether the segment has matches
+    private LtrScorer _firstScorer;
+    private final long _cost;
+    private final LtrBulkScorer.BlockScorer _blockScorer;
+    // set when the search fails, slices still scoring stop at their next block
+    private final AtomicBoolean _cancelled = new AtomicBoolean();
+
+    ParallelLtrBulkScorer(LtrQuery.LtrWeight weight, LeafReaderContext context, LtrScorer firstScorer,
+                          LtrExecutor executor) {
+        _weight = weight;
+        _context = context;
+        _executor = executor;
+        _firstScorer = firstScorer;
+        _cost = firstScorer.iterator().cost();
+        _blockScorer = new LtrBulkScorer.BlockScorer(weight);
+    }
+
+    @Override
+    public int score(LeafCollector collector, Bits acceptDocs, int min, int max) throws IOException {
+        collector.setScorer(_blockScorer);
+        int sliceSize = _executor.sliceSize();
+        int maxDoc = _context.reader().maxDoc();
+        int end = Math.min(max, maxDoc);
+        int start = min;
+        int parallelism = _executor.parallelism();
+        List<SliceTask> slices = new ArrayList<>(parallelism);
+        boolean collected = false;
+        try {
+            while (start < end) {
+                slices.clear();
+                Slice local = null;
+                while (start < end && slices.size() + 1 < parallelism) {
+                    int sliceEnd = (int) Math.min((long) start + sliceSize, end);
+                    slices.add(submit(acceptDocs, start, sliceEnd));
+                    start = sliceEnd;
+                }
+                if (start < end) {
+                    // the search thread scores a slice too rather than waiting
+                    int sliceEnd = (int) Math.min((long) start + sliceSize, end);
+                    local = score(acceptDocs, start, sliceEnd);
+                    start = sliceEnd;
+                }
+                for (Future<Slice> slice : slices) {
+                    collect(collector, get(slice));
+                }
+                if (local != null) {
+                    collect(collector, local);
+                }
+            }
+            collected = true;
+        } finally {
+            if (!collected) {
+                // the reader may be released once we return, no slice may still be reading it
+                _cancelled.set(true);
+                for (SliceTask slice : slices) {
+                    slice.cancelAndAwait();
+                }
+            }
+        }
+        return end == maxDoc ? DocIdSetIterator.NO_MORE_DOCS : max;
+    }
+
+    private SliceTask submit(Bits acceptDocs, int min, int max) throws IOException {
+        SliceTask task = new SliceTask(() -> score(acceptDocs, min, max));
+        try {
+            _executor.executor().execute(task);
+        } catch (EsRejectedExecutionException e) {
+            // the pool is busy, score the slice here
+            task.run();
+        }
+        return task;
+    }
+
+    private Slice score(Bits acceptDocs, int min, int max) throws IOException {
+        LtrScorer scorer = nextScorer();
+        Slice slice = new Slice(_cancelled);
+        if (scorer != null) {
+            try {
+                // already on the pool, or scored here when the pool is busy
+                new LtrBulkScorer(scorer, null, _weight.breaker()).score(slice, acceptDocs, min, max);
+            } catch (CollectionTerminatedException e) {
+                // cancelled, the slice won't be collected
+            }
+        }
+        return slice;
+    }
+
+    private synchronized LtrScorer nextScorer() throws IOException {
+        // scorers are not thread safe, each slice gets its own
+        if (_firstScorer != null) {
+            LtrScorer scorer = _firstScorer;
+            _firstScorer = null;
+            return scorer;
+        }
+        return (LtrScorer) _weight.scorer(_context);
+    }
+
+    private void collect(LeafCollector collector, Slice slice) throws IOException {
+        for (int i = 0; i < slice._numDocs; i++) {
+            _blockScorer._doc = slice._docs[i];
+            _blockScorer._score = slice._scores[i];
+            collector.collect(slice._docs[i]);
+        }
+    }
+
+    private static Slice get(Future<Slice> slice) throws IOException {
+        try {
+            return slice.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticsearchException("Interrupted while scoring a slice", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ExceptionsHelper.convertToRuntime((Exception) cause);
+        }
+    }
+
+    @Override
+    public long cost() {
+        return _cost;
+    }
+
+    /**
+     * A slice scored on the pool, that can tell when no thread scores it anymore
+     */
+    static class SliceTask extends FutureTask<Slice> {
+        // whether a thread ran the task, or it was cancelled before any did
+        private final AtomicBoolean _claimed = new AtomicBoolean();
+        private final CountDownLatch _finished = new CountDownLatch(1);
+
+        SliceTask(Callable<Slice> callable) {
+            super(callable);
+        }
+
+        @Override
+        public void run() {
+            if (_claimed.compareAndSet(false, true)) {
+                try {
+                    super.run();
+                } finally {
+                    _finished.countDown();
+                }
+            }
+        }
+
+        /**
+         * Cancel the slice and wait for the thread scoring it, if any, to be done
+         */
+        void cancelAndAwait() {
+            // never interrupt, the thread may be reading the index
+            cancel(false);
+            if (_claimed.compareAndSet(false, true)) {
+                // never started and now never will
+                return;
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    _finished.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The scored documents of a slice, in order
+     */
+    static class Slice implements LeafCollector {
+        private final AtomicBoolean _cancelled;
+        private int[] _docs = new int[16];
+        private float[] _scores = new float[16];
+        private int _numDocs;
+        private Scorer _scorer;
+
+        Slice(AtomicBoolean cancelled) {
+            _cancelled = cancelled;
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) {
+            _scorer = scorer;
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            if (_cancelled.get()) {
+                // blocks are collected once evaluated, stop before reading the next one
+                throw new CollectionTerminatedException();
+            }
+            if (_numDocs == _docs.length) {
+                _docs = ArrayUtil.grow(_docs, _numDocs + 1);
+                _scores = ArrayUtil.grow(_scores, _numDocs + 1);
+            }
+            _docs[_numDocs] = doc;
+            _scores[_numDocs] = _scorer.score();
+            _numDocs++;
+        }
+    }
+}
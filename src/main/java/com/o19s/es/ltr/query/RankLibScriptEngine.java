@@ -18,9 +18,16 @@ package com.o19s.es.ltr.query;
 
 import ciir.umass.edu.learning.Ranker;
 import ciir.umass.edu.learning.RankerFactory;
+import com.o19s.es.ltr.ranker.CompiledModelFormat;
+import com.o19s.es.ltr.ranker.LinearRanker;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.RankLibRanker;
+import com.o19s.es.ltr.ranker.RankLibTreeParser;
+import com.o19s.es.ltr.stats.LtrStats;
 import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.component.AbstractComponent;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
 import org.elasticsearch.script.CompiledScript;
 import org.elasticsearch.script.ExecutableScript;
 import org.elasticsearch.script.ScriptEngineService;
@@ -28,6 +35,7 @@ import org.elasticsearch.script.SearchScript;
 import org.elasticsearch.search.lookup.SearchLookup;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Map;
 
 /**
@@ -39,6 +47,10 @@ import java.util.Map;
  *
  * So this code acts as a hook for deserializing Ranklib models from ranklib XML
  * and as a convenient means for caching those deserialized model
+ *
+ * Tree ensembles are compiled into flat arrays rather than RankLib's object graph,
+ * linear models into a weight vector, other models are evaluated by RankLib.
+ * Compiled models can also be given in their binary form, see {@link CompiledModelFormat}.
  */
 public class RankLibScriptEngine extends AbstractComponent implements ScriptEngineService {
 
@@ -46,10 +58,20 @@ public class RankLibScriptEngine extends AbstractComponent implements ScriptEngi
 
     public static final String NAME = "ranklib";
     public static final String EXTENSION = "ranklib";
+    // directory of the binary model files, relative to the config directory
+    public static final String MODELS_DIR = "ltr";
+
+    // counts the models compiled and executed by the script service
+    private final LtrStats stats;
 
     public RankLibScriptEngine(Settings settings) {
+        this(settings, new LtrStats());
+    }
+
+    public RankLibScriptEngine(Settings settings, LtrStats stats) {
         super(settings);
         rankerFactory = new RankerFactory();
+        this.stats = stats;
     }
 
 
@@ -71,12 +93,50 @@ public class RankLibScriptEngine extends AbstractComponent implements ScriptEngi
 
     @Override
     public Object compile(String scriptName, String scriptSource, Map<String, String> params) {
-        return (Object) rankerFactory.loadRankerFromString(scriptSource);
+        stats.scriptCompiled();
+        if (CompiledModelFormat.isFileReference(scriptSource)) {
+            return loadModelFile(CompiledModelFormat.fileName(scriptSource));
+        }
+        return compileModel(rankerFactory, scriptSource);
+    }
+
+    /**
+     * Read a binary model, only files of the config/ltr directory can be read
+     */
+    private LtrRanker loadModelFile(String fileName) {
+        Path modelsDir = new Environment(settings).configFile().resolve(MODELS_DIR).normalize();
+        Path file = modelsDir.resolve(fileName).normalize();
+        if (!file.startsWith(modelsDir)) {
+            throw new IllegalArgumentException("Model file [" + fileName + "] is not in [" + modelsDir + "]");
+        }
+        try {
+            return CompiledModelFormat.readFile(file);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to read model file [" + file + "]", e);
+        }
+    }
+
+    /**
+     * Load a RankLib model, or a binary model inlined in base64, into its fastest evaluator
+     */
+    public static LtrRanker compileModel(RankerFactory rankerFactory, String modelSource) {
+        if (CompiledModelFormat.isBase64(modelSource)) {
+            return CompiledModelFormat.fromBase64(modelSource);
+        }
+        if (RankLibTreeParser.isTreeEnsemble(modelSource)) {
+            return RankLibTreeParser.parse(modelSource);
+        }
+        Ranker ranker = rankerFactory.loadRankerFromString(modelSource);
+        if (LinearRanker.isLinear(ranker)) {
+            return LinearRanker.fromRankLib(ranker);
+        }
+        return new RankLibRanker(ranker);
     }
 
     @Override
     public ExecutableScript executable(CompiledScript compiledScript, @Nullable Map<String, Object> vars) {
-        return new RankLibExecutableScript((Ranker)compiledScript.compiled());
+        stats.scriptExecuted();
+        return new RankLibExecutableScript((LtrRanker)compiledScript.compiled());
     }
 
     @Override
@@ -91,15 +151,15 @@ public class RankLibScriptEngine extends AbstractComponent implements ScriptEngi
 
     public class RankLibExecutableScript implements ExecutableScript {
 
-        Ranker _ranker;
+        LtrRanker _ranker;
 
-        public RankLibExecutableScript(Ranker ranker) {
+        public RankLibExecutableScript(LtrRanker ranker) {
             _ranker = ranker;
         }
 
         @Override
         public void setNextVar(String name, Object value) {
-            _ranker = (Ranker)(value);
+            _ranker = (LtrRanker)(value);
 
         }
 
@@ -0,0 +1,101 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.query;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+
+/**
+ * A feature reading the postings of a scorer shared with other features,
+ * so the postings are decoded once for all of them.
+ *
+ * Each feature gets its own iterator over the shared one. They can only lag
+ * behind it: the ltr scorer moves its features through documents in order,
+ * so a lagging feature advanced to a target the shared iterator is already
+ * past has not missed any document.
+ */
+class SharedFeatureScorer extends Scorer {
+    private final Scorer _shared;
+    private final DocIdSetIterator _sharedIterator;
+    // the score of every matching document for constant features, NaN otherwise
+    private final float _constantScore;
+    private final DocIdSetIterator _iterator;
+    private int _doc = -1;
+
+    SharedFeatureScorer(Weight weight, Scorer shared) {
+        this(weight, shared, Float.NaN);
+    }
+
+    SharedFeatureScorer(Weight weight, Scorer shared, float constantScore) {
+        super(weight);
+        _shared = shared;
+        _sharedIterator = shared.iterator();
+        _constantScore = constantScore;
+        _iterator = new DocIdSetIterator() {
+            @Override
+            public int docID() {
+                return _doc;
+            }
+
+            @Override
+            public int nextDoc() throws IOException {
+                return advance(_doc + 1);
+            }
+
+            @Override
+            public int advance(int target) throws IOException {
+                int doc = _sharedIterator.docID();
+                if (doc < target) {
+                    doc = _sharedIterator.advance(target);
+                }
+                _doc = doc;
+                return doc;
+            }
+
+            @Override
+            public long cost() {
+                return _sharedIterator.cost();
+            }
+        };
+    }
+
+    @Override
+    public int docID() {
+        return _doc;
+    }
+
+    @Override
+    public float score() throws IOException {
+        assert _sharedIterator.docID() == _doc;
+        if (!Float.isNaN(_constantScore)) {
+            return _constantScore;
+        }
+        return _shared.score();
+    }
+
+    @Override
+    public int freq() throws IOException {
+        return _shared.freq();
+    }
+
+    @Override
+    public DocIdSetIterator iterator() {
+        return _iterator;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.query;
+
+/**
+ * The k best scores seen so far, kept in a min-heap of floats so tracking
+ * the score to beat does not allocate.
+ */
+class TopScores {
+    private final float[] _heap;
+    private int _size;
+
+    TopScores(int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive, got [" + k + "]");
+        }
+        _heap = new float[k];
+    }
+
+    /**
+     * @return the score a document must beat to be in the top k
+     */
+    float threshold() {
+        return _size < _heap.length ? Float.NEGATIVE_INFINITY : _heap[0];
+    }
+
+    void offer(float score) {
+        if (_size < _heap.length) {
+            int i = _size++;
+            while (i > 0 && _heap[(i - 1) >>> 1] > score) {
+                _heap[i] = _heap[(i - 1) >>> 1];
+                i = (i - 1) >>> 1;
+            }
+            _heap[i] = score;
+        } else if (score > _heap[0]) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= _size) {
+                    break;
+                }
+                if (child + 1 < _size && _heap[child + 1] < _heap[child]) {
+                    child++;
+                }
+                if (_heap[child] >= score) {
+                    break;
+                }
+                _heap[i] = _heap[child];
+                i = child;
+            }
+            _heap[i] = score;
+        }
+    }
+}
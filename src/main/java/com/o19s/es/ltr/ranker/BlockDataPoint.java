@@ -0,0 +1,56 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.ranker;
+
+import ciir.umass.edu.learning.DataPoint;
+import ciir.umass.edu.utilities.RankLibError;
+
+/**
+ * Exposes one document of a column-major feature block as a RankLib DataPoint,
+ * for models that can only score a document at a time.
+ */
+class BlockDataPoint extends DataPoint {
+    private final float[][] _features;
+    private int _doc;
+
+    BlockDataPoint(float[][] features) {
+        super();
+        _features = features;
+    }
+
+    void setDoc(int doc) {
+        _doc = doc;
+    }
+
+    public float getFeatureValue(int fid) {
+        if (fid > 0 && fid <= _features.length) {
+            return _features[fid - 1][_doc];
+        }
+        throw RankLibError.create("Error in BlockDataPoint::getFeatureValue(): requesting unspecified feature, fid=" + fid);
+    }
+
+    public void setFeatureValue(int fid, float fval) {
+        throw new UnsupportedOperationException("BlockDataPoint is read only");
+    }
+
+    public void setFeatureVector(float[] dfVals) {
+        throw new UnsupportedOperationException("BlockDataPoint is read only");
+    }
+
+    public float[] getFeatureVector() {
+        throw new UnsupportedOperationException("BlockDataPoint has no dense feature vector");
+    }
+}
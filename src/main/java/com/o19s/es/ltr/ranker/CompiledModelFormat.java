@@ -0,0 +1,235 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.ranker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+
+/**
+ * Binary form of the compiled models, loaded with bulk copies of their
+ * primitive arrays instead of parsing RankLib's text.
+ *
+ * Little endian layout: magic, format version, model type, name, then for
+ * tree ensembles the roots and the node arrays, for linear models the bias,
+ * the feature ids and their weights. Every array is prefixed by its length.
+ *
+ * As a model source, the binary is either inlined in base64 after the
+ * {@link #BASE64_HEADER} line or read from the file named after {@link #FILE_HEADER}.
+ */
+public class CompiledModelFormat {
+    public static final String BASE64_HEADER = "## LTR binary";
+    public static final String FILE_HEADER = "## LTR binary file:";
+
+    private static final int MAGIC = 0x4C545242; // LTRB
+    private static final int FORMAT_VERSION = 1;
+    private static final byte TREE_ENSEMBLE = 1;
+    private static final byte LINEAR = 2;
+
+    private CompiledModelFormat() {
+    }
+
+    public static boolean canWrite(LtrRanker model) {
+        return model instanceof TreeEnsembleRanker || model instanceof LinearRanker;
+    }
+
+    public static boolean isBase64(String source) {
+        return source.startsWith(BASE64_HEADER + "\n");
+    }
+
+    public static boolean isFileReference(String source) {
+        return source.startsWith(FILE_HEADER);
+    }
+
+    /**
+     * @return the file named by a {@link #FILE_HEADER} source
+     */
+    public static String fileName(String source) {
+        int end = source.indexOf('\n');
+        return source.substring(FILE_HEADER.length(), end < 0 ? source.length() : end).trim();
+    }
+
+    public static byte[] toBytes(LtrRanker model) {
+        byte[] name = model.name().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out;
+        if (model instanceof TreeEnsembleRanker) {
+            TreeEnsembleRanker trees = (TreeEnsembleRanker) model;
+            int numNodes = trees._featureIds.length;
+            out = header(TREE_ENSEMBLE, name, 4 + 4 * trees._roots.length + 4 + 16 * numNodes);
+            putInts(out, trees._roots);
+            out.putInt(numNodes);
+            out.asIntBuffer().put(trees._featureIds);
+            out.position(out.position() + 4 * numNodes);
+            out.asFloatBuffer().put(trees._values);
+            out.position(out.position() + 4 * numNodes);
+            out.asIntBuffer().put(trees._left);
+            out.position(out.position() + 4 * numNodes);
+            out.asIntBuffer().put(trees._right);
+            out.position(out.position() + 4 * numNodes);
+        } else if (model instanceof LinearRanker) {
+            LinearRanker linear = (LinearRanker) model;
+            int numWeights = linear._featureIds.length;
+            out = header(LINEAR, name, 4 + 4 + 8 * numWeights);
+            out.putFloat(linear._bias);
+            out.putInt(numWeights);
+            out.asIntBuffer().put(linear._featureIds);
+            out.position(out.position() + 4 * numWeights);
+            out.asFloatBuffer().put(linear._weights);
+            out.position(out.position() + 4 * numWeights);
+        } else {
+            throw new IllegalArgumentException("Model [" + model.name() + "] has no binary form");
+        }
+        assert out.remaining() == 0;
+        return out.array();
+    }
+
+    public static String toBase64(LtrRanker model) {
+        return BASE64_HEADER + "\n" + Base64.getEncoder().encodeToString(toBytes(model));
+    }
+
+    public static LtrRanker fromBase64(String source) {
+        if (!isBase64(source)) {
+            throw new IllegalArgumentException("Not a binary model");
+        }
+        byte[] bytes = Base64.getMimeDecoder().decode(source.substring(BASE64_HEADER.length() + 1));
+        return read(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Load a model from a binary file, its arrays are copied to the heap anyway
+     */
+    public static LtrRanker readFile(Path path) throws IOException {
+        return read(ByteBuffer.wrap(Files.readAllBytes(path)));
+    }
+
+    public static LtrRanker read(ByteBuffer in) {
+        in = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a binary model");
+            }
+            int formatVersion = in.getInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unsupported binary model version [" + formatVersion + "]");
+            }
+            byte type = in.get();
+            int nameLength = in.getInt();
+            if (nameLength < 0 || nameLength > in.remaining()) {
+                throw new IllegalArgumentException("Corrupted binary model: invalid length [" + nameLength + "]");
+            }
+            byte[] nameBytes = new byte[nameLength];
+            in.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            switch (type) {
+                case TREE_ENSEMBLE:
+                    return readTrees(name, in);
+                case LINEAR:
+                    return readLinear(name, in);
+                default:
+                    throw new IllegalArgumentException("Unknown binary model type [" + type + "]");
+            }
+        } catch (RuntimeException e) {
+            if (e instanceof IllegalArgumentException) {
+                throw e;
+            }
+            throw new IllegalArgumentException("Corrupted binary model", e);
+        }
+    }
+
+    private static TreeEnsembleRanker readTrees(String name, ByteBuffer in) {
+        int[] roots = getInts(in, in.getInt());
+        int numNodes = in.getInt();
+        int[] featureIds = getInts(in, numNodes);
+        float[] values = getFloats(in, numNodes);
+        int[] left = getInts(in, numNodes);
+        int[] right = getInts(in, numNodes);
+        for (int root : roots) {
+            checkNode(root, -1, numNodes);
+        }
+        for (int node = 0; node < numNodes; node++) {
+            if (featureIds[node] != TreeEnsembleRanker.LEAF) {
+                if (featureIds[node] <= 0) {
+                    throw new IllegalArgumentException("Corrupted binary model: invalid feature [" + featureIds[node] + "]");
+                }
+                // children always follow their parent, so evaluation can't loop
+                checkNode(left[node], node, numNodes);
+                checkNode(right[node], node, numNodes);
+            }
+        }
+        return new TreeEnsembleRanker(name, roots, featureIds, values, left, right);
+    }
+
+    private static LinearRanker readLinear(String name, ByteBuffer in) {
+        float bias = in.getFloat();
+        int numWeights = in.getInt();
+        int[] featureIds = getInts(in, numWeights);
+        float[] weights = getFloats(in, numWeights);
+        for (int i = 0; i < numWeights; i++) {
+            if (featureIds[i] <= 0 || (i > 0 && featureIds[i] <= featureIds[i - 1])) {
+                throw new IllegalArgumentException("Corrupted binary model: invalid feature [" + featureIds[i] + "]");
+            }
+        }
+        return new LinearRanker(name, featureIds, weights, bias);
+    }
+
+    private static void checkNode(int node, int parent, int numNodes) {
+        if (node <= parent || node >= numNodes) {
+            throw new IllegalArgumentException("Corrupted binary model: invalid node [" + node + "]");
+        }
+    }
+
+    private static ByteBuffer header(byte type, byte[] name, int bodyLength) {
+        ByteBuffer out = ByteBuffer.allocate(4 + 4 + 1 + 4 + name.length + bodyLength).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC);
+        out.putInt(FORMAT_VERSION);
+        out.put(type);
+        out.putInt(name.length);
+        out.put(name);
+        return out;
+    }
+
+    private static void putInts(ByteBuffer out, int[] values) {
+        out.putInt(values.length);
+        out.asIntBuffer().put(values);
+        out.position(out.position() + 4 * values.length);
+    }
+
+    private static int[] getInts(ByteBuffer in, int length) {
+        checkLength(in, length);
+        int[] values = new int[length];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + 4 * length);
+        return values;
+    }
+
+    private static float[] getFloats(ByteBuffer in, int length) {
+        checkLength(in, length);
+        float[] values = new float[length];
+        in.asFloatBuffer().get(values);
+        in.position(in.position() + 4 * length);
+        return values;
+    }
+
+    private static void checkLength(ByteBuffer in, int length) {
+        if (length < 0 || length > in.remaining() / 4) {
+            throw new IllegalArgumentException("Corrupted binary model: invalid length [" + length + "]");
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.ranker;
+
+import ciir.umass.edu.learning.DataPoint;
+import ciir.umass.edu.learning.Ranker;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.Arrays;
+
+/**
+ * A linear model (Coordinate Ascent, Linear Regression) compiled into
+ * a primitive weight vector. Features with a zero weight are dropped.
+ */
+public class LinearRanker implements LtrRanker, Accountable {
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(LinearRanker.class);
+
+    public static final String COORDINATE_ASCENT = "Coordinate Ascent";
+    public static final String LINEAR_REGRESSION = "Linear Regression";
+
+    private final String _name;
+    // ascending feature ids with a non-zero weight
+    final int[] _featureIds;
+    final float[] _weights;
+    final float _bias;
+    // weights by feature id, to look up the features set on sparse points
+    private final float[] _weightsById;
+
+    public LinearRanker(String name, int[] featureIds, float[] weights, float bias) {
+        assert featureIds.length == weights.length;
+        _name = name;
+        _featureIds = featureIds;
+        _weights = weights;
+        _bias = bias;
+        int maxFeatureId = featureIds.length == 0 ? 0 : featureIds[featureIds.length - 1];
+        _weightsById = new float[maxFeatureId + 1];
+        for (int i = 0; i < featureIds.length; i++) {
+            _weightsById[featureIds[i]] = weights[i];
+        }
+    }
+
+    public static boolean isLinear(Ranker ranker) {
+        return COORDINATE_ASCENT.equals(ranker.name()) || LINEAR_REGRESSION.equals(ranker.name());
+    }
+
+    /**
+     * Extract the weights of a RankLib linear model. The model is evaluated on the
+     * all-zero vector to get its bias and on the unit vector of each feature to get
+     * that feature's weight, which avoids depending on RankLib's text formats.
+     */
+    public static LinearRanker fromRankLib(Ranker ranker) {
+        if (!isLinear(ranker)) {
+            throw new IllegalArgumentException("Not a linear RankLib model: [" + ranker.name() + "]");
+        }
+        int[] features = ranker.getFeatures().clone();
+        Arrays.sort(features);
+        ProbeDataPoint probe = new ProbeDataPoint();
+        double bias = ranker.eval(probe);
+        int[] featureIds = new int[features.length];
+        float[] weights = new float[features.length];
+        int numWeights = 0;
+        for (int fid : features) {
+            probe.probe(fid);
+            double weight = ranker.eval(probe) - bias;
+            if (weight != 0.0 && (numWeights == 0 || featureIds[numWeights - 1] != fid)) {
+                featureIds[numWeights] = fid;
+                weights[numWeights] = (float) weight;
+                numWeights++;
+            }
+        }
+        return new LinearRanker(ranker.name(), Arrays.copyOf(featureIds, numWeights),
+                Arrays.copyOf(weights, numWeights), (float) bias);
+    }
+
+    /**
+     * @return the ascending ids of the features with a non-zero weight, shared and not to be modified
+     */
+    public int[] featureIds() {
+        return _featureIds;
+    }
+
+    /**
+     * @return the weight of each of {@link #featureIds()}, shared and not to be modified
+     */
+    public float[] weights() {
+        return _weights;
+    }
+
+    public float bias() {
+        return _bias;
+    }
+
+    @Override
+    public String name() {
+        return _name;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return BASE_RAM_BYTES_USED + RamUsageEstimator.sizeOf(_featureIds) + RamUsageEstimator.sizeOf(_weights) +
+                RamUsageEstimator.sizeOf(_weightsById);
+    }
+
+    @Override
+    public float score(DataPoint point) {
+        float score = _bias;
+        for (int i = 0; i < _featureIds.length; i++) {
+            score += _weights[i] * point.getFeatureValue(_featureIds[i]);
+        }
+        return score;
+    }
+
+    /**
+     * Only visits the features set on the point
+     */
+    @Override
+    public float scoreSparse(SparseDataPoint point) {
+        if (_weightsById.length > point.numFeatures() + 1) {
+            throw new IllegalArgumentException("Model [" + _name + "] uses feature [" + (_weightsById.length - 1) +
+                    "] but only [" + point.numFeatures() + "] features were provided");
+        }
+        float score = _bias;
+        for (int i = 0; i < point.size(); i++) {
+            int fid = point.featureId(i);
+            // features past the last one weighted by the model don't contribute
+            if (fid < _weightsById.length) {
+                score += _weightsById[fid] * point.value(i);
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Accumulates the block one feature column at a time
+     */
+    @Override
+    public void score(float[][] features, int numDocs, float[] scores) {
+        Arrays.fill(scores, 0, numDocs, _bias);
+        for (int i = 0; i < _featureIds.length; i++) {
+            int fid = _featureIds[i];
+            if (fid < 1 || fid > features.length) {
+                throw new IllegalArgumentException("Model [" + _name + "] uses feature [" + fid +
+                        "] but only [" + features.length + "] features were provided");
+            }
+            final float[] column = features[fid - 1];
+            final float weight = _weights[i];
+            for (int d = 0; d < numDocs; d++) {
+                scores[d] += weight * column[d];
+            }
+        }
+    }
+}
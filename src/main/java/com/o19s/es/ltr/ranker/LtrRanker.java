@@ -0,0 +1,62 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.ranker;
+
+import ciir.umass.edu.learning.DataPoint;
+
+/**
+ * A model able to score a document's feature vector.
+ * Features are 1-based, as in RankLib.
+ */
+public interface LtrRanker {
+
+    /**
+     * @return the name of the model, as reported in explanations
+     */
+    String name();
+
+    /**
+     * Score a single document
+     */
+    float score(DataPoint point);
+
+    /**
+     * Score a single document that only matters if it scores above threshold,
+     * models able to tell early that it can't may stop evaluating it.
+     *
+     * @return the score if it may be above threshold, otherwise an upper bound
+     *         of the score that is not above threshold
+     */
+    default float score(DataPoint point, float threshold) {
+        return score(point);
+    }
+
+    /**
+     * Score a single document given only the features it matched,
+     * features not set are zero
+     */
+    float scoreSparse(SparseDataPoint point);
+
+    /**
+     * Score a block of documents at once.
+     *
+     * @param features column-major feature matrix: features[f][d] is the value of
+     *                 feature f + 1 for the d-th document of the block
+     * @param numDocs number of documents in the block, may be less than the columns length
+     * @param scores receives the score of each document of the block
+     */
+    void score(float[][] features, int numDocs, float[] scores);
+}
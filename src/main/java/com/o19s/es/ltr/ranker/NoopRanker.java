@@ -0,0 +1,50 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.ranker;
+
+import ciir.umass.edu.learning.DataPoint;
+
+import java.util.Arrays;
+
+/**
+ * Scores every document 0, for when only the features are wanted
+ */
+public class NoopRanker implements LtrRanker {
+    public static final NoopRanker INSTANCE = new NoopRanker();
+
+    private NoopRanker() {
+    }
+
+    @Override
+    public String name() {
+        return "noop";
+    }
+
+    @Override
+    public float score(DataPoint point) {
+        return 0.0F;
+    }
+
+    @Override
+    public float scoreSparse(SparseDataPoint point) {
+        return 0.0F;
+    }
+
+    @Override
+    public void score(float[][] features, int numDocs, float[] scores) {
+        Arrays.fill(scores, 0, numDocs, 0.0F);
+    }
+}
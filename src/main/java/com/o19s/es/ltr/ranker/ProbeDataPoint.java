@@ -0,0 +1,53 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.ranker;
+
+import ciir.umass.edu.learning.DataPoint;
+
+/**
+ * A DataPoint whose features are all zero but one, used to recover the
+ * weights of linear models by evaluating them on unit vectors.
+ */
+class ProbeDataPoint extends DataPoint {
+    private int _probedFeature = -1;
+
+    ProbeDataPoint() {
+        super();
+    }
+
+    /**
+     * @param fid the feature set to 1, -1 for the all-zero vector
+     */
+    void probe(int fid) {
+        _probedFeature = fid;
+    }
+
+    public float getFeatureValue(int fid) {
+        return fid == _probedFeature ? 1.0F : 0.0F;
+    }
+
+    public void setFeatureValue(int fid, float fval) {
+        throw new UnsupportedOperationException("ProbeDataPoint is read only");
+    }
+
+    public void setFeatureVector(float[] dfVals) {
+        throw new UnsupportedOperationException("ProbeDataPoint is read only");
+    }
+
+    public float[] getFeatureVector() {
+        throw new UnsupportedOperationException("ProbeDataPoint has no dense feature vector");
+    }
+}
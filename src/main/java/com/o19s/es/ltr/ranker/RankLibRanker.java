@@ -0,0 +1,69 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.ranker;
+
+import ciir.umass.edu.learning.DataPoint;
+import ciir.umass.edu.learning.Ranker;
+
+/**
+ * Evaluates any model RankLib knows how to load through
+ * RankLib's own object graph.
+ */
+public class RankLibRanker implements LtrRanker {
+    private final Ranker _ranker;
+
+    public RankLibRanker(Ranker ranker) {
+        _ranker = ranker;
+    }
+
+    public Ranker getRanker() {
+        return _ranker;
+    }
+
+    @Override
+    public String name() {
+        return _ranker.name();
+    }
+
+    @Override
+    public float score(DataPoint point) {
+        return (float) _ranker.eval(point);
+    }
+
+    @Override
+    public float scoreSparse(SparseDataPoint point) {
+        return (float) _ranker.eval(point);
+    }
+
+    @Override
+    public void score(float[][] features, int numDocs, float[] scores) {
+        BlockDataPoint point = new BlockDataPoint(features);
+        for (int d = 0; d < numDocs; d++) {
+            point.setDoc(d);
+            scores[d] = (float) _ranker.eval(point);
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof RankLibRanker && _ranker == ((RankLibRanker) other)._ranker;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(_ranker);
+    }
+}
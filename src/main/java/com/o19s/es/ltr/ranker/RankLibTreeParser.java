@@ -0,0 +1,290 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.ranker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compiles the RankLib text representation of tree ensembles straight into
+ * a {@link TreeEnsembleRanker}, without building RankLib's object graph.
+ *
+ * A model starts with "## name" comment lines followed by one
+ * &lt;ensemble&gt; (several bags for Random Forests) of weighted trees.
+ */
+public class RankLibTreeParser {
+    public static final String LAMBDAMART = "LambdaMART";
+    public static final String MART = "MART";
+    public static final String RANDOM_FORESTS = "Random Forests";
+
+    private final String _model;
+    private int _pos;
+    private String _tag;
+    private String _attributes;
+
+    private RankLibTreeParser(String model) {
+        _model = model;
+    }
+
+    /**
+     * @return the model name from the first "## name" line, null if there is none
+     */
+    public static String modelName(String model) {
+        String trimmed = model.trim();
+        if (!trimmed.startsWith("##")) {
+            return null;
+        }
+        int eol = trimmed.indexOf('\n');
+        return (eol == -1 ? trimmed.substring(2) : trimmed.substring(2, eol)).trim();
+    }
+
+    public static boolean isTreeEnsemble(String model) {
+        String name = modelName(model);
+        return LAMBDAMART.equals(name) || MART.equals(name) || RANDOM_FORESTS.equals(name);
+    }
+
+    public static TreeEnsembleRanker parse(String model) {
+        String name = modelName(model);
+        if (!isTreeEnsemble(model)) {
+            throw new IllegalArgumentException("Not a RankLib tree ensemble model: [" + name + "]");
+        }
+        return new RankLibTreeParser(model).parseModel(name);
+    }
+
+    private TreeEnsembleRanker parseModel(String name) {
+        // Random Forests average their bags, the other ensembles have a single one
+        List<List<Node>> ensembles = new ArrayList<>();
+        while (nextTag()) {
+            expectTag("ensemble");
+            ensembles.add(parseEnsemble());
+        }
+        if (ensembles.isEmpty()) {
+            throw new IllegalArgumentException("RankLib model [" + name + "] has no ensemble");
+        }
+
+        List<Node> trees = new ArrayList<>();
+        int numNodes = 0;
+        for (List<Node> ensemble : ensembles) {
+            for (Node tree : ensemble) {
+                tree.scale(1.0 / ensembles.size());
+                numNodes += tree.size();
+                trees.add(tree);
+            }
+        }
+
+        Layout layout = new Layout(trees.size(), numNodes);
+        for (int i = 0; i < trees.size(); i++) {
+            layout.roots[i] = layout.add(trees.get(i));
+        }
+        return new TreeEnsembleRanker(name, layout.roots, layout.featureIds, layout.values, layout.left, layout.right);
+    }
+
+    private List<Node> parseEnsemble() {
+        List<Node> trees = new ArrayList<>();
+        while (true) {
+            nextTagOrFail();
+            if ("/ensemble".equals(_tag)) {
+                return trees;
+            }
+            expectTag("tree");
+            double weight = Double.parseDouble(attribute("weight"));
+            nextTagOrFail();
+            expectTag("split");
+            Node root = parseSplit();
+            root.scale(weight);
+            nextTagOrFail();
+            expectTag("/tree");
+            trees.add(root);
+        }
+    }
+
+    /**
+     * Parse a split whose opening tag was just read, up to and including its closing tag
+     */
+    private Node parseSplit() {
+        nextTagOrFail();
+        if ("output".equals(_tag)) {
+            double output = Double.parseDouble(text("output"));
+            nextTagOrFail();
+            expectTag("/split");
+            return new Node(output);
+        }
+        expectTag("feature");
+        int featureId = Integer.parseInt(text("feature"));
+        nextTagOrFail();
+        expectTag("threshold");
+        float threshold = Float.parseFloat(text("threshold"));
+
+        Node left = null;
+        Node right = null;
+        for (int i = 0; i < 2; i++) {
+            nextTagOrFail();
+            expectTag("split");
+            boolean isLeft = _attributes.contains("\"left\"") || (!_attributes.contains("\"right\"") && i == 0);
+            Node child = parseSplit();
+            if (isLeft) {
+                left = child;
+            } else {
+                right = child;
+            }
+        }
+        if (left == null || right == null) {
+            throw new IllegalArgumentException("RankLib split on feature [" + featureId + "] must have a left and a right branch");
+        }
+        nextTagOrFail();
+        expectTag("/split");
+        return new Node(featureId, threshold, left, right);
+    }
+
+    /**
+     * Move to the next tag, returns false at the end of the model
+     */
+    private boolean nextTag() {
+        int start = _model.indexOf('<', _pos);
+        if (start == -1) {
+            return false;
+        }
+        int end = _model.indexOf('>', start);
+        if (end == -1) {
+            throw new IllegalArgumentException("Unterminated tag at offset [" + start + "] of RankLib model");
+        }
+        String content = _model.substring(start + 1, end).trim();
+        int space = content.indexOf(' ');
+        _tag = (space == -1 ? content : content.substring(0, space)).toLowerCase(Locale.ROOT);
+        _attributes = space == -1 ? "" : content.substring(space);
+        _pos = end + 1;
+        return true;
+    }
+
+    private void nextTagOrFail() {
+        if (!nextTag()) {
+            throw new IllegalArgumentException("Unexpected end of RankLib model");
+        }
+    }
+
+    private void expectTag(String tag) {
+        if (!tag.equals(_tag)) {
+            throw new IllegalArgumentException("Expected <" + tag + "> but found <" + _tag + "> in RankLib model");
+        }
+    }
+
+    /**
+     * Read the text of the element whose opening tag was just read and consume its closing tag
+     */
+    private String text(String tag) {
+        int end = _model.indexOf('<', _pos);
+        if (end == -1) {
+            throw new IllegalArgumentException("Unexpected end of RankLib model in <" + tag + ">");
+        }
+        String text = _model.substring(_pos, end).trim();
+        _pos = end;
+        nextTagOrFail();
+        expectTag("/" + tag);
+        return text;
+    }
+
+    private String attribute(String name) {
+        String prefix = name + "=\"";
+        int start = _attributes.indexOf(prefix);
+        if (start == -1) {
+            throw new IllegalArgumentException("Missing attribute [" + name + "] on <" + _tag + "> in RankLib model");
+        }
+        start += prefix.length();
+        return _attributes.substring(start, _attributes.indexOf('"', start));
+    }
+
+    private static class Node {
+        final int featureId;
+        final float threshold;
+        double output;
+        final Node left;
+        final Node right;
+        final int leaves;
+
+        Node(double output) {
+            this.featureId = TreeEnsembleRanker.LEAF;
+            this.threshold = 0.0F;
+            this.output = output;
+            this.left = null;
+            this.right = null;
+            this.leaves = 1;
+        }
+
+        Node(int featureId, float threshold, Node left, Node right) {
+            this.featureId = featureId;
+            this.threshold = threshold;
+            this.left = left;
+            this.right = right;
+            this.leaves = left.leaves + right.leaves;
+        }
+
+        boolean isLeaf() {
+            return featureId == TreeEnsembleRanker.LEAF;
+        }
+
+        int size() {
+            return isLeaf() ? 1 : 1 + left.size() + right.size();
+        }
+
+        void scale(double factor) {
+            if (isLeaf()) {
+                output *= factor;
+            } else {
+                left.scale(factor);
+                right.scale(factor);
+            }
+        }
+    }
+
+    private static class Layout {
+        final int[] roots;
+        final int[] featureIds;
+        final float[] values;
+        final int[] left;
+        final int[] right;
+        int size = 0;
+
+        Layout(int numTrees, int numNodes) {
+            roots = new int[numTrees];
+            featureIds = new int[numNodes];
+            values = new float[numNodes];
+            left = new int[numNodes];
+            right = new int[numNodes];
+        }
+
+        /**
+         * Append the subtree depth first, most populated child first
+         */
+        int add(Node node) {
+            int idx = size++;
+            featureIds[idx] = node.featureId;
+            if (node.isLeaf()) {
+                values[idx] = (float) node.output;
+                return idx;
+            }
+            values[idx] = node.threshold;
+            if (node.left.leaves >= node.right.leaves) {
+                left[idx] = add(node.left);
+                right[idx] = add(node.right);
+            } else {
+                right[idx] = add(node.right);
+                left[idx] = add(node.left);
+            }
+            return idx;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.ranker;
+
+import ciir.umass.edu.learning.DataPoint;
+import ciir.umass.edu.utilities.RankLibError;
+
+import java.util.Arrays;
+
+/**
+ * A feature vector recording only the features set for the current
+ * document. Resetting it and reading a feature are constant time, so the
+ * work done per document scales with the features that matched rather
+ * than with the features declared.
+ *
+ * Meant to be reused across the documents of a segment: a value is only
+ * visible when it was set since the last {@link #reset()}.
+ */
+public class SparseDataPoint extends DataPoint {
+    private final int _numFeatures;
+    // features set since the last reset, in insertion order
+    private final int[] _ids;
+    private final float[] _values;
+    private int _size;
+    // random access by feature id, a value is current if its stamp is the current generation
+    private final float[] _dense;
+    private final int[] _stamps;
+    private int _generation = 1;
+
+    public SparseDataPoint(int numFeatures) {
+        super();
+        _numFeatures = numFeatures;
+        _ids = new int[numFeatures];
+        _values = new float[numFeatures];
+        _dense = new float[numFeatures + 1]; // RankLib features are 1 based
+        _stamps = new int[numFeatures + 1];
+    }
+
+    public void reset() {
+        _size = 0;
+        if (_generation == Integer.MAX_VALUE) {
+            Arrays.fill(_stamps, 0);
+            _generation = 0;
+        }
+        _generation++;
+    }
+
+    /**
+     * @return the number of features set since the last reset
+     */
+    public int size() {
+        return _size;
+    }
+
+    public int featureId(int i) {
+        return _ids[i];
+    }
+
+    public float value(int i) {
+        return _values[i];
+    }
+
+    public boolean isSet(int fid) {
+        return _stamps[fid] == _generation;
+    }
+
+    public int numFeatures() {
+        return _numFeatures;
+    }
+
+    public float getFeatureValue(int fid) {
+        if (fid > 0 && fid <= _numFeatures) {
+            return _stamps[fid] == _generation ? _dense[fid] : 0.0F;
+        }
+        throw RankLibError.create("Error in SparseDataPoint::getFeatureValue(): requesting unspecified feature, fid=" + fid);
+    }
+
+    public void setFeatureValue(int fid, float fval) {
+        if (fid <= 0 || fid > _numFeatures) {
+            throw RankLibError.create("Error in SparseDataPoint::setFeatureValue(): feature (id=" + fid + ") not found.");
+        }
+        if (_stamps[fid] == _generation) {
+            for (int i = 0; i < _size; i++) {
+                if (_ids[i] == fid) {
+                    _values[i] = fval;
+                    break;
+                }
+            }
+        } else {
+            _ids[_size] = fid;
+            _values[_size] = fval;
+            _size++;
+            _stamps[fid] = _generation;
+        }
+        _dense[fid] = fval;
+    }
+
+    public void setFeatureVector(float[] dfVals) {
+        throw new UnsupportedOperationException("SparseDataPoint cannot be set from a dense vector");
+    }
+
+    public float[] getFeatureVector() {
+        throw new UnsupportedOperationException("SparseDataPoint has no dense feature vector");
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.ranker;
+
+import ciir.umass.edu.learning.DataPoint;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The query-dependent trees of an ensemble, evaluated at search time, plus
+ * the score of its static trees precomputed at ingest time and read as an
+ * extra feature: see {@link TreeEnsembleRanker#split(int[])}.
+ */
+public class StaticScoreRanker implements LtrRanker {
+    private final TreeEnsembleRanker _ensemble;
+    // sorted
+    private final int[] _staticFeatures;
+    private final int _staticScoreId;
+    private final TreeEnsembleRanker _trees;
+
+    /**
+     * @param ensemble the whole ensemble
+     * @param staticFeatures ids of the features read by the static trees
+     * @param staticScoreId id of the feature holding the score of the static trees
+     */
+    public StaticScoreRanker(TreeEnsembleRanker ensemble, int[] staticFeatures, int staticScoreId) {
+        _ensemble = ensemble;
+        _staticFeatures = staticFeatures.clone();
+        Arrays.sort(_staticFeatures);
+        _staticScoreId = staticScoreId;
+        _trees = ensemble.split(_staticFeatures).dynamicTrees();
+    }
+
+    @Override
+    public String name() {
+        return _trees.name();
+    }
+
+    /**
+     * @return the dynamic trees of the ensemble
+     */
+    public TreeEnsembleRanker trees() {
+        return _trees;
+    }
+
+    /**
+     * @return the features read, in ascending order: those of the dynamic trees and the static score
+     */
+    public int[] featureIds() {
+        int[] used = _trees.usedFeatureIds();
+        int[] featureIds = Arrays.copyOf(used, used.length + 1);
+        featureIds[used.length] = _staticScoreId;
+        Arrays.sort(featureIds);
+        return featureIds;
+    }
+
+    @Override
+    public float score(DataPoint point) {
+        return point.getFeatureValue(_staticScoreId) + _trees.score(point);
+    }
+
+    @Override
+    public float score(DataPoint point, float threshold) {
+        float staticScore = point.getFeatureValue(_staticScoreId);
+        return staticScore + _trees.score(point, threshold - staticScore);
+    }
+
+    @Override
+    public float scoreSparse(SparseDataPoint point) {
+        return point.getFeatureValue(_staticScoreId) + _trees.scoreSparse(point);
+    }
+
+    @Override
+    public void score(float[][] features, int numDocs, float[] scores) {
+        _trees.score(features, numDocs, scores);
+        float[] staticScores = features[_staticScoreId - 1];
+        for (int d = 0; d < numDocs; d++) {
+            scores[d] += staticScores[d];
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof StaticScoreRanker)) {
+            return false;
+        }
+        // compiled models are cached, the same split of the same ensemble gives the same trees
+        StaticScoreRanker that = (StaticScoreRanker) other;
+        return _ensemble == that._ensemble && Arrays.equals(_staticFeatures, that._staticFeatures) &&
+                _staticScoreId == that._staticScoreId;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(System.identityHashCode(_ensemble), Arrays.hashCode(_staticFeatures), _staticScoreId);
+    }
+}
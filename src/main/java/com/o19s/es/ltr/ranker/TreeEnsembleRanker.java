@@ -0,0 +1,334 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.ranker;
+
+import ciir.umass.edu.learning.DataPoint;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.Arrays;
+
+/**
+ * A tree ensemble (LambdaMART, MART, Random Forests) compiled into flat
+ * primitive arrays. Nodes of every tree live in the same arrays; a node is
+ * a split when its feature is positive and a leaf otherwise. Leaf values
+ * already carry the tree weight, so the score is the plain sum of the leaves
+ * reached.
+ *
+ * Children are laid out depth first with the most populated child right
+ * after its parent, so the most frequently taken branch is the one closest
+ * in memory.
+ *
+ * Thresholds are kept as floats rather than binned: documents scored one by
+ * one only read the features along the path they take, binning all of them
+ * up front would read features the trees never reach.
+ */
+public class TreeEnsembleRanker implements LtrRanker, Accountable {
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(TreeEnsembleRanker.class);
+    static final int LEAF = -1;
+
+    private final String _name;
+    final int[] _roots;
+    final int[] _featureIds;
+    // threshold of a split, output of a leaf
+    final float[] _values;
+    final int[] _left;
+    final int[] _right;
+    private final int _maxFeatureId;
+    // child taken by a split when its feature is not set, i.e. zero
+    private final int[] _missing;
+    // greatest total the trees from the i-th on can add to a score
+    private final float[] _maxRemaining;
+
+    TreeEnsembleRanker(String name, int[] roots, int[] featureIds, float[] values, int[] left, int[] right) {
+        assert featureIds.length == values.length;
+        assert featureIds.length == left.length;
+        assert featureIds.length == right.length;
+        _name = name;
+        _roots = roots;
+        _featureIds = featureIds;
+        _values = values;
+        _left = left;
+        _right = right;
+        int maxFeatureId = 0;
+        for (int featureId : featureIds) {
+            maxFeatureId = Math.max(maxFeatureId, featureId);
+        }
+        _maxFeatureId = maxFeatureId;
+        _missing = new int[featureIds.length];
+        for (int node = 0; node < featureIds.length; node++) {
+            if (featureIds[node] != LEAF) {
+                _missing[node] = 0.0F <= values[node] ? left[node] : right[node];
+            }
+        }
+        _maxRemaining = new float[roots.length + 1];
+        for (int t = roots.length - 1; t >= 0; t--) {
+            _maxRemaining[t] = _maxRemaining[t + 1] + maxLeaf(roots[t]);
+        }
+    }
+
+    private float maxLeaf(int node) {
+        if (_featureIds[node] == LEAF) {
+            return _values[node];
+        }
+        return Math.max(maxLeaf(_left[node]), maxLeaf(_right[node]));
+    }
+
+    @Override
+    public String name() {
+        return _name;
+    }
+
+    public int numTrees() {
+        return _roots.length;
+    }
+
+    public int numNodes() {
+        return _featureIds.length;
+    }
+
+    /**
+     * @return the distinct features the splits read, in ascending order
+     */
+    public int[] usedFeatureIds() {
+        boolean[] isUsed = new boolean[_maxFeatureId + 1];
+        int numUsed = 0;
+        for (int featureId : _featureIds) {
+            if (featureId != LEAF && !isUsed[featureId]) {
+                isUsed[featureId] = true;
+                numUsed++;
+            }
+        }
+        int[] used = new int[numUsed];
+        numUsed = 0;
+        for (int featureId = 1; featureId <= _maxFeatureId; featureId++) {
+            if (isUsed[featureId]) {
+                used[numUsed++] = featureId;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Split the trees by the features they read. This copies the trees, callers
+     * keep the split rather than splitting for every document or query.
+     *
+     * @param staticFeatures ids of the static features, i.e. features that don't depend on the query
+     */
+    public Split split(int[] staticFeatures) {
+        boolean[] isStatic = new boolean[_maxFeatureId + 1];
+        for (int featureId : staticFeatures) {
+            if (featureId > 0 && featureId <= _maxFeatureId) {
+                isStatic[featureId] = true;
+            }
+        }
+        boolean[] staticTree = new boolean[_roots.length];
+        for (int t = 0; t < _roots.length; t++) {
+            staticTree[t] = true;
+            for (int node = _roots[t]; node < treeEnd(t); node++) {
+                if (_featureIds[node] != LEAF && !isStatic[_featureIds[node]]) {
+                    staticTree[t] = false;
+                    break;
+                }
+            }
+        }
+        return new Split(subset(staticTree, true), subset(staticTree, false));
+    }
+
+    /**
+     * @return the index after the last node of the t-th tree, trees are laid out one after the other
+     */
+    private int treeEnd(int t) {
+        return t + 1 < _roots.length ? _roots[t + 1] : _featureIds.length;
+    }
+
+    /**
+     * Copy the trees t for which selected[t] is keep
+     */
+    private TreeEnsembleRanker subset(boolean[] selected, boolean keep) {
+        int numTrees = 0;
+        int numNodes = 0;
+        for (int t = 0; t < _roots.length; t++) {
+            if (selected[t] == keep) {
+                numTrees++;
+                numNodes += treeEnd(t) - _roots[t];
+            }
+        }
+        int[] roots = new int[numTrees];
+        int[] featureIds = new int[numNodes];
+        float[] values = new float[numNodes];
+        int[] left = new int[numNodes];
+        int[] right = new int[numNodes];
+        numTrees = 0;
+        numNodes = 0;
+        for (int t = 0; t < _roots.length; t++) {
+            if (selected[t] != keep) {
+                continue;
+            }
+            int start = _roots[t];
+            int size = treeEnd(t) - start;
+            int shift = numNodes - start;
+            roots[numTrees++] = numNodes;
+            System.arraycopy(_featureIds, start, featureIds, numNodes, size);
+            System.arraycopy(_values, start, values, numNodes, size);
+            for (int node = start; node < start + size; node++) {
+                if (_featureIds[node] != LEAF) {
+                    left[node + shift] = _left[node] + shift;
+                    right[node + shift] = _right[node] + shift;
+                }
+            }
+            numNodes += size;
+        }
+        return new TreeEnsembleRanker(_name, roots, featureIds, values, left, right);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return BASE_RAM_BYTES_USED + RamUsageEstimator.sizeOf(_roots) + RamUsageEstimator.sizeOf(_featureIds) +
+                RamUsageEstimator.sizeOf(_values) + RamUsageEstimator.sizeOf(_left) + RamUsageEstimator.sizeOf(_right) +
+                RamUsageEstimator.sizeOf(_missing) + RamUsageEstimator.sizeOf(_maxRemaining);
+    }
+
+    @Override
+    public float score(DataPoint point) {
+        final int[] featureIds = _featureIds;
+        final float[] values = _values;
+        float score = 0.0F;
+        for (int root : _roots) {
+            int node = root;
+            int featureId;
+            while ((featureId = featureIds[node]) != LEAF) {
+                node = point.getFeatureValue(featureId) <= values[node] ? _left[node] : _right[node];
+            }
+            score += values[node];
+        }
+        return score;
+    }
+
+    /**
+     * Stops as soon as the trees evaluated so far plus the best leaves of the
+     * remaining trees fall below threshold
+     */
+    @Override
+    public float score(DataPoint point, float threshold) {
+        final int[] featureIds = _featureIds;
+        final float[] values = _values;
+        final float[] maxRemaining = _maxRemaining;
+        float score = 0.0F;
+        for (int t = 0; t < _roots.length; t++) {
+            int node = _roots[t];
+            int featureId;
+            while ((featureId = featureIds[node]) != LEAF) {
+                node = point.getFeatureValue(featureId) <= values[node] ? _left[node] : _right[node];
+            }
+            score += values[node];
+            float bound = score + maxRemaining[t + 1];
+            if (bound < threshold) {
+                return bound;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * @return the greatest score the ensemble can give
+     */
+    public float maxScore() {
+        return _maxRemaining[0];
+    }
+
+    /**
+     * Splits on features the document did not match take their
+     * precomputed default branch without comparing values
+     */
+    @Override
+    public float scoreSparse(SparseDataPoint point) {
+        checkNumFeatures(point.numFeatures());
+        final int[] featureIds = _featureIds;
+        final float[] values = _values;
+        float score = 0.0F;
+        for (int root : _roots) {
+            int node = root;
+            int featureId;
+            while ((featureId = featureIds[node]) != LEAF) {
+                if (point.isSet(featureId)) {
+                    node = point.getFeatureValue(featureId) <= values[node] ? _left[node] : _right[node];
+                } else {
+                    node = _missing[node];
+                }
+            }
+            score += values[node];
+        }
+        return score;
+    }
+
+    /**
+     * Walks the ensemble tree by tree, each tree being evaluated for the
+     * whole block before moving to the next one so its nodes stay in cache.
+     */
+    @Override
+    public void score(float[][] features, int numDocs, float[] scores) {
+        checkNumFeatures(features.length);
+        final int[] featureIds = _featureIds;
+        final float[] values = _values;
+        Arrays.fill(scores, 0, numDocs, 0.0F);
+        for (int root : _roots) {
+            for (int d = 0; d < numDocs; d++) {
+                int node = root;
+                int featureId;
+                while ((featureId = featureIds[node]) != LEAF) {
+                    node = features[featureId - 1][d] <= values[node] ? _left[node] : _right[node];
+                }
+                scores[d] += values[node];
+            }
+        }
+    }
+
+    private void checkNumFeatures(int numFeatures) {
+        if (_maxFeatureId > numFeatures) {
+            throw new IllegalArgumentException("Model [" + _name + "] uses feature [" + _maxFeatureId +
+                    "] but only [" + numFeatures + "] features were provided");
+        }
+    }
+
+    /**
+     * The trees of an ensemble split by static features, the score of the ensemble is the sum of both
+     */
+    public static class Split {
+        private final TreeEnsembleRanker _staticTrees;
+        private final TreeEnsembleRanker _dynamicTrees;
+
+        Split(TreeEnsembleRanker staticTrees, TreeEnsembleRanker dynamicTrees) {
+            _staticTrees = staticTrees;
+            _dynamicTrees = dynamicTrees;
+        }
+
+        /**
+         * @return the trees that only split on static features, their score can be computed once per
+         *         document. Single leaf trees are constant and belong here too.
+         */
+        public TreeEnsembleRanker staticTrees() {
+            return _staticTrees;
+        }
+
+        /**
+         * @return the other trees, evaluated at search time
+         */
+        public TreeEnsembleRanker dynamicTrees() {
+            return _dynamicTrees;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.stats;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.shard.SearchOperationListener;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Node-level counters of the models and features evaluated by ltr queries.
+ *
+ * Counters are striped so concurrent searches don't contend on them. Timing
+ * every document would cost more than some models, so evaluation and feature
+ * times are only measured on one document out of {@link #SAMPLE_INTERVAL}.
+ * Documents scored one at a time are counted by their thread, and added to
+ * the counters of their model once the search phase is over.
+ *
+ * At most {@link #MAX_MODELS} models and {@link #MAX_FEATURES} features per
+ * model are tracked, the others are all counted under {@value #OTHER}.
+ */
+public class LtrStats implements ToXContent {
+    public static final int SAMPLE_INTERVAL = 64;
+    public static final int MAX_MODELS = 1000;
+    public static final int MAX_FEATURES = 256;
+    public static final String OTHER = "_other";
+
+    private final Map<String, ModelStats> _models = new ConcurrentHashMap<>();
+    // documents scored by the current thread, not yet added to the counters of their model
+    private final ThreadLocal<Map<ModelStats, PendingDocs>> _pending = ThreadLocal.withInitial(HashMap::new);
+    private final LongAdder _scriptCompilations = new LongAdder();
+    private final LongAdder _scriptExecutions = new LongAdder();
+
+    /**
+     * @param model id of the model: the stored model and its version, or the script
+     */
+    public ModelStats model(String model) {
+        return bounded(_models, model, MAX_MODELS, () -> new ModelStats(this));
+    }
+
+    /**
+     * @return the entry of key, or the {@value #OTHER} entry once the map is full
+     */
+    private static <T> T bounded(Map<String, T> map, String key, int maxSize, Supplier<T> supplier) {
+        T value = map.get(key);
+        if (value != null) {
+            return value;
+        }
+        if (map.size() >= maxSize) {
+            key = OTHER;
+        }
+        return map.computeIfAbsent(key, (k) -> supplier.get());
+    }
+
+    PendingDocs pending(ModelStats model) {
+        return _pending.get().computeIfAbsent(model, PendingDocs::new);
+    }
+
+    /**
+     * Add the documents scored by the current thread to the counters of their model
+     */
+    public void flushPending() {
+        Map<ModelStats, PendingDocs> pending = _pending.get();
+        if (pending.isEmpty()) {
+            return;
+        }
+        for (PendingDocs docs : pending.values()) {
+            docs.flush();
+        }
+        pending.clear();
+    }
+
+    /**
+     * Flushes the documents scored by searches once their query and fetch phases are over
+     */
+    public SearchOperationListener flushListener() {
+        return new SearchOperationListener() {
+            @Override
+            public void onQueryPhase(SearchContext searchContext, long tookInNanos) {
+                flushPending();
+            }
+
+            @Override
+            public void onFailedQueryPhase(SearchContext searchContext) {
+                flushPending();
+            }
+
+            @Override
+            public void onFetchPhase(SearchContext searchContext, long tookInNanos) {
+                flushPending();
+            }
+
+            @Override
+            public void onFailedFetchPhase(SearchContext searchContext) {
+                flushPending();
+            }
+        };
+    }
+
+    public void scriptCompiled() {
+        _scriptCompilations.increment();
+    }
+
+    public void scriptExecuted() {
+        _scriptExecutions.increment();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        long compilations = _scriptCompilations.sum();
+        long executions = _scriptExecutions.sum();
+        builder.startObject("script");
+        builder.field("compilations", compilations);
+        builder.field("executions", executions);
+        // the script service only compiles scripts missing from its cache, and looks one up before each execution
+        builder.field("cache_misses", compilations);
+        builder.field("cache_hits", Math.max(0L, executions - compilations));
+        builder.endObject();
+        builder.startObject("models");
+        for (Map.Entry<String, ModelStats> model : new TreeMap<>(_models).entrySet()) {
+            builder.field(model.getKey());
+            model.getValue().toXContent(builder, params);
+        }
+        return builder.endObject();
+    }
+
+    public static class ModelStats implements ToXContent {
+        // null when not tracked by node stats
+        private final LtrStats _owner;
+        private final LongAdder _queries = new LongAdder();
+        private final LongAdder _docsScored = new LongAdder();
+        private final Timer _eval = new Timer();
+        private final Map<String, Timer> _features = new ConcurrentHashMap<>();
+
+        public ModelStats() {
+            this(null);
+        }
+
+        ModelStats(LtrStats owner) {
+            _owner = owner;
+        }
+
+        /**
+         * A query using the model is run on a shard
+         */
+        public void queried() {
+            _queries.increment();
+        }
+
+        public void docsScored(long docs) {
+            _docsScored.add(docs);
+        }
+
+        /**
+         * @return the counter of the documents the current thread scores one at a time, null
+         *         if they must be added with {@link #docsScored(long)}
+         */
+        public PendingDocs pendingDocs() {
+            return _owner == null ? null : _owner.pending(this);
+        }
+
+        /**
+         * @param nanos time to score sampled docs, features read by the model included
+         */
+        public void evaluated(long docs, long nanos) {
+            _eval.record(docs, nanos);
+        }
+
+        public Timer feature(String name) {
+            return bounded(_features, name, MAX_FEATURES, Timer::new);
+        }
+
+        public long queries() {
+            return _queries.sum();
+        }
+
+        public long docsScored() {
+            return _docsScored.sum();
+        }
+
+        public Timer eval() {
+            return _eval;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("queries", _queries.sum());
+            builder.field("docs_scored", _docsScored.sum());
+            builder.field("eval");
+            _eval.toXContent(builder, params);
+            builder.startObject("features");
+            for (Map.Entry<String, Timer> feature : new TreeMap<>(_features).entrySet()) {
+                builder.field(feature.getKey());
+                feature.getValue().toXContent(builder, params);
+            }
+            builder.endObject();
+            return builder.endObject();
+        }
+    }
+
+    /**
+     * Documents scored by a thread, not counted by their model until flushed
+     */
+    public static class PendingDocs {
+        private final ModelStats _model;
+        private long _docs;
+
+        PendingDocs(ModelStats model) {
+            _model = model;
+        }
+
+        public void increment() {
+            _docs++;
+        }
+
+        void flush() {
+            if (_docs > 0) {
+                _model.docsScored(_docs);
+                _docs = 0;
+            }
+        }
+    }
+
+    /**
+     * Sampled time per document, with a histogram of power of two buckets
+     */
+    public static class Timer implements ToXContent {
+        private final LongAdder _docs = new LongAdder();
+        private final LongAdder _nanos = new LongAdder();
+        // _buckets[i] counts the samples of less than 2^i nanos per document, and at least 2^(i-1)
+        private final LongAdder[] _buckets = new LongAdder[Long.SIZE];
+
+        Timer() {
+            for (int i = 0; i < _buckets.length; i++) {
+                _buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            record(1, nanos);
+        }
+
+        public void record(long docs, long nanos) {
+            _docs.add(docs);
+            _nanos.add(nanos);
+            long perDoc = Math.max(0, nanos / docs);
+            _buckets[Math.min(Long.SIZE - 1, Long.SIZE - Long.numberOfLeadingZeros(perDoc))].increment();
+        }
+
+        public long docs() {
+            return _docs.sum();
+        }
+
+        public long nanos() {
+            return _nanos.sum();
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            long docs = _docs.sum();
+            long nanos = _nanos.sum();
+            builder.field("sampled_docs", docs);
+            builder.field("sampled_nanos", nanos);
+            builder.field("avg_nanos", docs == 0 ? 0 : nanos / docs);
+            builder.startArray("histogram");
+            for (int i = 0; i < _buckets.length; i++) {
+                long count = _buckets[i].sum();
+                if (count > 0) {
+                    builder.startObject().field("lt_nanos", 1L << i).field("count", count).endObject();
+                }
+            }
+            builder.endArray();
+            return builder.endObject();
+        }
+    }
+}
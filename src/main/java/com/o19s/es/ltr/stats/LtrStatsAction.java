@@ -0,0 +1,155 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.stats;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the ltr stats of every node
+ */
+public class LtrStatsAction extends Action<LtrStatsAction.LtrStatsRequest, LtrStatsAction.LtrStatsResponse,
+        LtrStatsAction.LtrStatsRequestBuilder> {
+    public static final String NAME = "cluster:monitor/ltr/stats";
+    public static final LtrStatsAction INSTANCE = new LtrStatsAction();
+
+    private LtrStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public LtrStatsRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new LtrStatsRequestBuilder(client);
+    }
+
+    @Override
+    public LtrStatsResponse newResponse() {
+        return new LtrStatsResponse();
+    }
+
+    public static class LtrStatsRequestBuilder
+            extends NodesOperationRequestBuilder<LtrStatsRequest, LtrStatsResponse, LtrStatsRequestBuilder> {
+        public LtrStatsRequestBuilder(ElasticsearchClient client) {
+            super(client, INSTANCE, new LtrStatsRequest());
+        }
+    }
+
+    public static class LtrStatsRequest extends BaseNodesRequest<LtrStatsRequest> {
+        public LtrStatsRequest(String... nodesIds) {
+            super(nodesIds);
+        }
+    }
+
+    public static class LtrStatsNodeRequest extends BaseNodeRequest {
+        public LtrStatsNodeRequest() {
+        }
+
+        LtrStatsNodeRequest(String nodeId) {
+            super(nodeId);
+        }
+    }
+
+    /**
+     * The stats of a node, as rendered by the node itself
+     */
+    public static class LtrStatsNodeResponse extends BaseNodeResponse implements ToXContent {
+        private Map<String, Object> _stats;
+
+        LtrStatsNodeResponse() {
+        }
+
+        LtrStatsNodeResponse(DiscoveryNode node, Map<String, Object> stats) {
+            super(node);
+            _stats = stats;
+        }
+
+        static LtrStatsNodeResponse readNodeResponse(StreamInput in) throws IOException {
+            LtrStatsNodeResponse response = new LtrStatsNodeResponse();
+            response.readFrom(in);
+            return response;
+        }
+
+        public Map<String, Object> stats() {
+            return _stats;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            _stats = in.readMap();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeMap(_stats);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject(getNode().getId());
+            builder.field("name", getNode().getName());
+            for (Map.Entry<String, Object> entry : _stats.entrySet()) {
+                builder.field(entry.getKey(), entry.getValue());
+            }
+            return builder.endObject();
+        }
+    }
+
+    public static class LtrStatsResponse extends BaseNodesResponse<LtrStatsNodeResponse> implements ToXContent {
+        LtrStatsResponse() {
+        }
+
+        LtrStatsResponse(ClusterName clusterName, List<LtrStatsNodeResponse> nodes, List<FailedNodeException> failures) {
+            super(clusterName, nodes, failures);
+        }
+
+        @Override
+        protected List<LtrStatsNodeResponse> readNodesFrom(StreamInput in) throws IOException {
+            return in.readList(LtrStatsNodeResponse::readNodeResponse);
+        }
+
+        @Override
+        protected void writeNodesTo(StreamOutput out, List<LtrStatsNodeResponse> nodes) throws IOException {
+            out.writeStreamableList(nodes);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject("nodes");
+            for (LtrStatsNodeResponse node : getNodes()) {
+                node.toXContent(builder, params);
+            }
+            return builder.endObject();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.stats;
+
+import com.o19s.es.ltr.stats.LtrStatsAction.LtrStatsRequest;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions;
+
+import java.io.IOException;
+
+/**
+ * Reports the ltr stats of the nodes of the cluster, or of some of them:
+ *
+ * GET /_ltr/_stats
+ * GET /_ltr/_stats/{nodeId}
+ *
+ * Queries and scored documents per model, sampled evaluation and feature times,
+ * the caches of the plugin and its circuit breaker.
+ */
+public class RestLtrStatsAction extends BaseRestHandler {
+    public RestLtrStatsAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(RestRequest.Method.GET, "/_ltr/_stats", this);
+        controller.registerHandler(RestRequest.Method.GET, "/_ltr/_stats/{nodeId}", this);
+    }
+
+    public String getName() {
+        return "ltr_stats_action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        LtrStatsRequest statsRequest = new LtrStatsRequest(Strings.splitStringByCommaToArray(request.param("nodeId")));
+        statsRequest.timeout(request.param("timeout"));
+        return channel -> client.execute(LtrStatsAction.INSTANCE, statsRequest,
+                new RestActions.NodesResponseRestListener<>(channel));
+    }
+}
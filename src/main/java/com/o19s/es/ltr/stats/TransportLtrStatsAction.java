@@ -0,0 +1,118 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.stats;
+
+import com.o19s.es.ltr.query.LtrServices;
+import com.o19s.es.ltr.stats.LtrStatsAction.LtrStatsNodeRequest;
+import com.o19s.es.ltr.stats.LtrStatsAction.LtrStatsNodeResponse;
+import com.o19s.es.ltr.stats.LtrStatsAction.LtrStatsRequest;
+import com.o19s.es.ltr.stats.LtrStatsAction.LtrStatsResponse;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Each node reports its queries and scored documents per model, sampled evaluation
+ * and feature times, the caches of the plugin and its circuit breaker.
+ */
+public class TransportLtrStatsAction extends TransportNodesAction<LtrStatsRequest, LtrStatsResponse,
+        LtrStatsNodeRequest, LtrStatsNodeResponse> {
+    private final LtrServices _services;
+
+    @Inject
+    public TransportLtrStatsAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                   TransportService transportService, ActionFilters actionFilters,
+                                   IndexNameExpressionResolver indexNameExpressionResolver, LtrServices services) {
+        super(settings, LtrStatsAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, LtrStatsRequest::new, LtrStatsNodeRequest::new, ThreadPool.Names.MANAGEMENT,
+                LtrStatsNodeResponse.class);
+        _services = services;
+    }
+
+    @Override
+    protected LtrStatsResponse newResponse(LtrStatsRequest request, List<LtrStatsNodeResponse> responses,
+                                           List<FailedNodeException> failures) {
+        return new LtrStatsResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected LtrStatsNodeRequest newNodeRequest(String nodeId, LtrStatsRequest request) {
+        return new LtrStatsNodeRequest(nodeId);
+    }
+
+    @Override
+    protected LtrStatsNodeResponse newNodeResponse() {
+        return new LtrStatsNodeResponse();
+    }
+
+    @Override
+    protected LtrStatsNodeResponse nodeOperation(LtrStatsNodeRequest request) {
+        try {
+            return new LtrStatsNodeResponse(clusterService.localNode(), nodeStats(_services));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    protected boolean accumulateExceptions() {
+        return false;
+    }
+
+    static Map<String, Object> nodeStats(LtrServices services) throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder();
+        builder.startObject();
+        services.stats().toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.startObject("model_cache");
+        builder.field("ram_bytes_used", services.modelStore().ramBytesUsed());
+        cacheStats(builder, services.modelStore().cacheStats());
+        builder.endObject();
+        builder.startObject("feature_weight_cache");
+        builder.field("count", services.weightCache().count());
+        cacheStats(builder, services.weightCache().cacheStats());
+        builder.endObject();
+        builder.startObject("breaker");
+        builder.field("limit_size_in_bytes", services.breaker().getLimit());
+        builder.field("estimated_size_in_bytes", services.breaker().getUsed());
+        builder.field("tripped", services.breaker().getTrippedCount());
+        builder.endObject();
+        builder.endObject();
+        return XContentHelper.convertToMap(builder.bytes(), true, XContentType.JSON).v2();
+    }
+
+    private static void cacheStats(XContentBuilder builder, Cache.CacheStats stats) throws IOException {
+        builder.field("hits", stats.getHits());
+        builder.field("misses", stats.getMisses());
+        builder.field("evictions", stats.getEvictions());
+    }
+}
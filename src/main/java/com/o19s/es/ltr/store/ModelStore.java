@@ -0,0 +1,255 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.store;
+
+import ciir.umass.edu.learning.RankerFactory;
+import com.o19s.es.ltr.query.LtrCircuitBreaker;
+import com.o19s.es.ltr.query.RankLibScriptEngine;
+import com.o19s.es.ltr.ranker.CompiledModelFormat;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import org.apache.lucene.util.Accountable;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.ResourceAlreadyExistsException;
+import org.elasticsearch.ResourceNotFoundException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Models stored once under a name and a version in the {@value #INDEX} index,
+ * and compiled once per node.
+ *
+ * A stored version is never overwritten, so compiled models are cached by
+ * name and version without ever being stale. The cache is bounded by the
+ * memory used by the compiled models rather than by their number.
+ */
+public class ModelStore extends AbstractComponent {
+    public static final String INDEX = ".ltrstore";
+    public static final String TYPE = "model";
+    public static final String NAME_FIELD = "name";
+    public static final String VERSION_FIELD = "version";
+    public static final String DEFINITION_FIELD = "definition";
+    // binary form of the compiled model, loaded without parsing the definition
+    public static final String COMPILED_FIELD = "compiled";
+
+    public static final Setting<ByteSizeValue> CACHE_MAX_SIZE =
+            Setting.memorySizeSetting("ltr.model_cache.max_size", "10mb", Setting.Property.NodeScope);
+    public static final Setting<TimeValue> CACHE_EXPIRE_AFTER_ACCESS = Setting.timeSetting("ltr.model_cache.expire_after_access",
+            TimeValue.timeValueHours(1), Setting.Property.NodeScope);
+
+    private final Cache<String, CompiledModel> _cache;
+    private final RankerFactory _rankerFactory = new RankerFactory();
+    // cached models are accounted until evicted
+    private final LtrCircuitBreaker _breaker;
+
+    public ModelStore(Settings settings) {
+        this(settings, new LtrCircuitBreaker(settings));
+    }
+
+    public ModelStore(Settings settings, LtrCircuitBreaker breaker) {
+        super(settings);
+        _breaker = breaker;
+        _cache = CacheBuilder.<String, CompiledModel>builder()
+                .setMaximumWeight(CACHE_MAX_SIZE.get(settings).getBytes())
+                .weigher((id, model) -> model.ramBytesUsed)
+                .setExpireAfterAccess(CACHE_EXPIRE_AFTER_ACCESS.get(settings).nanos())
+                .removalListener((notification) -> _breaker.addWithoutBreaking(-notification.getValue().ramBytesUsed))
+                .build();
+    }
+
+    public static List<Setting<?>> getSettings() {
+        return Arrays.asList(CACHE_MAX_SIZE, CACHE_EXPIRE_AFTER_ACCESS);
+    }
+
+    public static String id(String name, long version) {
+        return name + "@" + version;
+    }
+
+    /**
+     * Get a stored model, compiling it if this node has no cached copy
+     */
+    public LtrRanker load(Client client, String name, long version) {
+        return load(name, version, () -> {
+            GetResponse response = client.prepareGet(INDEX, TYPE, id(name, version)).get();
+            if (!response.isExists()) {
+                throw new ResourceNotFoundException("Model [{}] version [{}] not found", name, version);
+            }
+            Object compiled = response.getSource().get(COMPILED_FIELD);
+            if (compiled != null) {
+                return CompiledModelFormat.BASE64_HEADER + "\n" + compiled;
+            }
+            return (String) response.getSource().get(DEFINITION_FIELD);
+        });
+    }
+
+    LtrRanker load(String name, long version, Supplier<String> definition) {
+        try {
+            return _cache.computeIfAbsent(id(name, version), (id) -> compileAccounted(id, definition.get())).model;
+        } catch (ExecutionException e) {
+            Throwable cause = ExceptionsHelper.unwrapCause(e.getCause());
+            if (cause instanceof ElasticsearchException) {
+                throw (ElasticsearchException) cause;
+            }
+            throw new ElasticsearchException("Failed to load model [{}] version [{}]", cause, name, version);
+        }
+    }
+
+    /**
+     * Compile a model once the breaker accepted an estimate of its size, then account its actual size
+     */
+    private CompiledModel compileAccounted(String id, String definition) {
+        String label = "model [" + id + "]";
+        long accounted = estimateBytes(definition);
+        _breaker.addEstimateBytesAndMaybeBreak(accounted, label);
+        boolean success = false;
+        try {
+            CompiledModel compiled = compile(definition);
+            long extra = compiled.ramBytesUsed - accounted;
+            if (extra > 0) {
+                _breaker.addEstimateBytesAndMaybeBreak(extra, label);
+            } else {
+                _breaker.addWithoutBreaking(extra);
+            }
+            accounted = compiled.ramBytesUsed;
+            success = true;
+            return compiled;
+        } finally {
+            if (!success) {
+                _breaker.addWithoutBreaking(-accounted);
+            }
+        }
+    }
+
+    /**
+     * RankLib's object graph can't be measured, and compiled models are not known before compiling them:
+     * the size of the definition is a fair estimate
+     */
+    private static long estimateBytes(String definition) {
+        return 2L * definition.length();
+    }
+
+    private CompiledModel compile(String definition) {
+        LtrRanker model = RankLibScriptEngine.compileModel(_rankerFactory, definition);
+        long ramBytesUsed;
+        if (model instanceof Accountable) {
+            ramBytesUsed = ((Accountable) model).ramBytesUsed();
+        } else {
+            ramBytesUsed = estimateBytes(definition);
+        }
+        return new CompiledModel(model, ramBytesUsed);
+    }
+
+    /**
+     * @return the memory used by the compiled models of this node
+     */
+    public long ramBytesUsed() {
+        return _cache.weight();
+    }
+
+    public Cache.CacheStats cacheStats() {
+        return _cache.stats();
+    }
+
+    /**
+     * Check that a model can be compiled, so broken models fail when stored rather than at query time
+     *
+     * @return the compiled model
+     */
+    public LtrRanker validate(String definition) {
+        try {
+            return compile(definition).model;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid model definition: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Store a new version of a model, creating the store if needed. A version
+     * already stored is never overwritten.
+     *
+     * @param model the compiled definition, stored in binary form when it has one
+     */
+    public static void store(Client client, String name, long version, String definition, LtrRanker model,
+                             ActionListener<IndexResponse> listener) throws IOException {
+        XContentBuilder source = jsonBuilder().startObject()
+                .field(NAME_FIELD, name)
+                .field(VERSION_FIELD, version)
+                .field(DEFINITION_FIELD, definition);
+        if (CompiledModelFormat.canWrite(model)) {
+            source.field(COMPILED_FIELD, CompiledModelFormat.toBytes(model));
+        }
+        source.endObject();
+        Runnable index = () -> client.prepareIndex(INDEX, TYPE, id(name, version))
+                .setCreate(true)
+                .setSource(source)
+                .execute(listener);
+        client.admin().indices().prepareCreate(INDEX)
+                .setSettings(Settings.builder()
+                        .put("index.number_of_shards", 1)
+                        // every node can read the models locally
+                        .put("index.auto_expand_replicas", "0-all"))
+                .addMapping(TYPE, mapping())
+                .execute(ActionListener.wrap((created) -> index.run(), (e) -> {
+                    if (ExceptionsHelper.unwrapCause(e) instanceof ResourceAlreadyExistsException) {
+                        index.run();
+                    } else {
+                        listener.onFailure(e);
+                    }
+                }));
+    }
+
+    private static XContentBuilder mapping() throws IOException {
+        return jsonBuilder().startObject()
+                .startObject(TYPE)
+                    .field("dynamic", "strict")
+                    .startObject("properties")
+                        .startObject(NAME_FIELD).field("type", "keyword").endObject()
+                        .startObject(VERSION_FIELD).field("type", "long").endObject()
+                        .startObject(DEFINITION_FIELD).field("type", "text").field("index", false).endObject()
+                        .startObject(COMPILED_FIELD).field("type", "binary").endObject()
+                    .endObject()
+                .endObject()
+                .endObject();
+    }
+
+    private static class CompiledModel {
+        final LtrRanker model;
+        final long ramBytesUsed;
+
+        CompiledModel(LtrRanker model, long ramBytesUsed) {
+            this.model = model;
+            this.ramBytesUsed = ramBytesUsed;
+        }
+    }
+}
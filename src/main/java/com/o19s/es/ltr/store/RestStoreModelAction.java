@@ -0,0 +1,92 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.store;
+
+import com.o19s.es.ltr.query.LtrExecutor;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestStatusToXContentListener;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Stores a new version of a model:
+ *
+ * PUT /_ltr/_model/{name}/{version}
+ * { "definition": "## LambdaMART\n..." }
+ *
+ * The model is compiled before being stored so broken models are rejected right away,
+ * compiled models are stored in binary form too so nodes load them without parsing.
+ * Models are compiled on the ltr thread pool.
+ */
+public class RestStoreModelAction extends BaseRestHandler {
+    private final ModelStore _modelStore;
+    private final LtrExecutor _executor;
+
+    public RestStoreModelAction(Settings settings, RestController controller, ModelStore modelStore, LtrExecutor executor) {
+        super(settings);
+        _modelStore = modelStore;
+        _executor = executor;
+        controller.registerHandler(RestRequest.Method.PUT, "/_ltr/_model/{name}/{version}", this);
+        controller.registerHandler(RestRequest.Method.POST, "/_ltr/_model/{name}/{version}", this);
+    }
+
+    public String getName() {
+        return "ltr_store_model_action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        String name = request.param("name");
+        long version = request.paramAsLong("version", -1);
+        if (version < 0) {
+            throw new IllegalArgumentException("Model version must be a non-negative number, got [" + request.param("version") + "]");
+        }
+        Object definition;
+        try (XContentParser parser = request.contentParser()) {
+            Map<String, Object> body = parser.map();
+            definition = body.get(ModelStore.DEFINITION_FIELD);
+        }
+        if (!(definition instanceof String)) {
+            throw new IllegalArgumentException("Model [" + name + "] requires a [" + ModelStore.DEFINITION_FIELD + "] string");
+        }
+        return channel -> {
+            ActionListener<IndexResponse> listener = new RestStatusToXContentListener<>(channel);
+            // compiling a large model takes a while, not on a network thread
+            _executor.executor().execute(new AbstractRunnable() {
+                @Override
+                public void onFailure(Exception e) {
+                    listener.onFailure(e);
+                }
+
+                @Override
+                protected void doRun() throws Exception {
+                    LtrRanker model = _modelStore.validate((String) definition);
+                    ModelStore.store(client, name, version, (String) definition, model, listener);
+                }
+            });
+        };
+    }
+}
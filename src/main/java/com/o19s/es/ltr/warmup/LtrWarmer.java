@@ -0,0 +1,277 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.warmup;
+
+import com.o19s.es.ltr.query.DenseProgramaticDataPoint;
+import com.o19s.es.ltr.query.LtrBulkScorer;
+import com.o19s.es.ltr.query.LtrServices;
+import com.o19s.es.ltr.ranker.LinearRanker;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.RankLibRanker;
+import com.o19s.es.ltr.ranker.SparseDataPoint;
+import com.o19s.es.ltr.ranker.TreeEnsembleRanker;
+import com.o19s.es.ltr.store.ModelStore;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.util.Supplier;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.SetOnce;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.index.shard.IndexEventListener;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Warms up models and ltr queries so the first searches after a restart
+ * don't pay for parsing models and for code the JIT has not compiled yet.
+ *
+ * With {@link #ENABLED}, every stored model is compiled into the model store
+ * and evaluated on synthetic feature vectors whenever the model store's shard
+ * starts on this node, i.e. on node start and when the store is opened.
+ *
+ * Indices can also list queries in {@link #QUERIES}. They are run against
+ * each shard of the index once it started. Warm-up runs on the generic
+ * thread pool, never on the threads changing the state of shards, so it
+ * doesn't delay recoveries or cluster state updates.
+ */
+public class LtrWarmer extends AbstractComponent {
+    public static final Setting<Boolean> ENABLED = Setting.boolSetting("ltr.warmup.enabled", false,
+            Setting.Property.NodeScope);
+    public static final Setting<Integer> EVALUATIONS = Setting.intSetting("ltr.warmup.evaluations", 10000, 0,
+            Setting.Property.NodeScope);
+    public static final Setting<List<String>> QUERIES = Setting.listSetting("index.ltr.warmup.queries",
+            Collections.emptyList(), Function.identity(), Setting.Property.IndexScope, Setting.Property.Dynamic);
+    public static final Setting<Integer> QUERY_REPEAT = Setting.intSetting("index.ltr.warmup.repeat", 10, 1,
+            Setting.Property.IndexScope, Setting.Property.Dynamic);
+    // stored models warmed each time the store starts, the model cache bounds what is kept anyway
+    static final int MAX_MODELS = 1000;
+    private static final int TOP_N = 10;
+
+    private final LtrServices _services;
+    private final boolean _enabled;
+    private final int _evaluations;
+    private final SetOnce<ThreadPool> _threadPool = new SetOnce<>();
+    private final SetOnce<NamedXContentRegistry> _xContentRegistry = new SetOnce<>();
+
+    public LtrWarmer(Settings settings, LtrServices services) {
+        super(settings);
+        _services = services;
+        _enabled = ENABLED.get(settings);
+        _evaluations = EVALUATIONS.get(settings);
+    }
+
+    public static List<Setting<?>> getSettings() {
+        return Arrays.asList(ENABLED, EVALUATIONS, QUERIES, QUERY_REPEAT);
+    }
+
+    public void start(ThreadPool threadPool, NamedXContentRegistry xContentRegistry) {
+        _threadPool.set(threadPool);
+        _xContentRegistry.set(xContentRegistry);
+    }
+
+    /**
+     * @return a listener for a single index
+     */
+    public IndexEventListener listener() {
+        return new IndexListener();
+    }
+
+    /**
+     * Compile every stored model and evaluate it, blocks until done
+     *
+     * @return the number of models warmed
+     */
+    int warmModels() {
+        Client client = _services.client();
+        SearchResponse response = client.prepareSearch(ModelStore.INDEX)
+                .setTypes(ModelStore.TYPE)
+                .setSize(MAX_MODELS)
+                .setFetchSource(new String[] {ModelStore.NAME_FIELD, ModelStore.VERSION_FIELD}, null)
+                .get();
+        Random random = new Random(0);
+        int numWarmed = 0;
+        for (SearchHit hit : response.getHits()) {
+            Map<String, Object> source = hit.getSource();
+            String name = (String) source.get(ModelStore.NAME_FIELD);
+            long version = ((Number) source.get(ModelStore.VERSION_FIELD)).longValue();
+            try {
+                exercise(_services.modelStore().load(client, name, version), _evaluations, random);
+                numWarmed++;
+            } catch (Exception e) {
+                logger.warn((Supplier<?>) () -> new ParameterizedMessage("failed to warm up model [{}] version [{}]",
+                        name, version), e);
+            }
+        }
+        return numWarmed;
+    }
+
+    /**
+     * Evaluate a model on random feature vectors through every scoring path: single
+     * documents, bounded, sparse and blocks
+     *
+     * @return the sum of the scores, so evaluations can't be optimized away
+     */
+    static float exercise(LtrRanker model, int evaluations, Random random) {
+        int numFeatures = numFeatures(model);
+        if (numFeatures == 0) {
+            return 0.0F;
+        }
+        DenseProgramaticDataPoint dense = new DenseProgramaticDataPoint(numFeatures);
+        SparseDataPoint sparse = new SparseDataPoint(numFeatures);
+        float[][] block = new float[numFeatures][LtrBulkScorer.BLOCK_SIZE];
+        float[] scores = new float[LtrBulkScorer.BLOCK_SIZE];
+        float sum = 0.0F;
+        for (int i = 0; i < evaluations; i++) {
+            int d = i % LtrBulkScorer.BLOCK_SIZE;
+            sparse.reset();
+            for (int fid = 1; fid <= numFeatures; fid++) {
+                float value = (float) random.nextGaussian();
+                dense.setFeatureValue(fid, value);
+                if (random.nextBoolean()) {
+                    sparse.setFeatureValue(fid, value);
+                }
+                block[fid - 1][d] = value;
+            }
+            sum += model.score(dense);
+            sum += model.score(dense, 0.0F);
+            sum += model.scoreSparse(sparse);
+            if (d == LtrBulkScorer.BLOCK_SIZE - 1) {
+                model.score(block, LtrBulkScorer.BLOCK_SIZE, scores);
+                sum += scores[0];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return the greatest feature id the model reads, 0 if unknown
+     */
+    static int numFeatures(LtrRanker model) {
+        int[] featureIds;
+        if (model instanceof TreeEnsembleRanker) {
+            featureIds = ((TreeEnsembleRanker) model).usedFeatureIds();
+        } else if (model instanceof LinearRanker) {
+            featureIds = ((LinearRanker) model).featureIds();
+        } else if (model instanceof RankLibRanker) {
+            featureIds = ((RankLibRanker) model).getRanker().getFeatures();
+        } else {
+            return 0;
+        }
+        int numFeatures = 0;
+        for (int featureId : featureIds) {
+            numFeatures = Math.max(numFeatures, featureId);
+        }
+        return numFeatures;
+    }
+
+    /**
+     * Run the warm-up queries of the index against a shard, blocks until done
+     *
+     * @return the number of queries that ran
+     */
+    int replayQueries(IndexService indexService, IndexShard shard) {
+        Settings indexSettings = shard.indexSettings().getSettings();
+        List<String> queries = QUERIES.get(indexSettings);
+        if (queries.isEmpty()) {
+            return 0;
+        }
+        int numRun = 0;
+        int repeat = QUERY_REPEAT.get(indexSettings);
+        try (Engine.Searcher searcher = shard.acquireSearcher("ltr_warmup")) {
+            QueryShardContext context = indexService.newQueryShardContext(shard.shardId().id(), searcher.reader(),
+                    System::currentTimeMillis);
+            for (String json : queries) {
+                try {
+                    QueryBuilder builder = QueryBuilder.rewriteQuery(parseQuery(json), context);
+                    Query query = builder.toQuery(context);
+                    for (int i = 0; i < repeat; i++) {
+                        searcher.searcher().search(query, TOP_N);
+                    }
+                    numRun++;
+                } catch (Exception e) {
+                    logger.warn((Supplier<?>) () -> new ParameterizedMessage("{} failed to run warm-up query [{}]",
+                            shard.shardId(), json), e);
+                }
+            }
+        } finally {
+            // not a search phase, the documents scored on this thread are only counted once flushed
+            _services.stats().flushPending();
+        }
+        return numRun;
+    }
+
+    private QueryBuilder parseQuery(String json) throws IOException {
+        try (XContentParser parser = XContentFactory.xContent(json).createParser(_xContentRegistry.get(), json)) {
+            return new QueryParseContext(parser).parseInnerQueryBuilder()
+                    .orElseThrow(() -> new IllegalArgumentException("Empty warm-up query"));
+        }
+    }
+
+    private class IndexListener implements IndexEventListener {
+        private volatile IndexService _indexService;
+
+        @Override
+        public void afterIndexCreated(IndexService indexService) {
+            _indexService = indexService;
+        }
+
+        @Override
+        public void afterIndexShardStarted(IndexShard shard) {
+            // called on the cluster state thread, warming up searches and loads models
+            if (_enabled && ModelStore.INDEX.equals(shard.shardId().getIndexName())) {
+                _threadPool.get().generic().execute(() -> {
+                    try {
+                        warmModels();
+                    } catch (Exception e) {
+                        logger.warn("failed to warm up the stored models", e);
+                    }
+                });
+            }
+            IndexService indexService = _indexService;
+            if (indexService != null && !QUERIES.get(shard.indexSettings().getSettings()).isEmpty()) {
+                _threadPool.get().generic().execute(() -> {
+                    try {
+                        replayQueries(indexService, shard);
+                    } catch (Exception e) {
+                        // e.g. the shard was closed meanwhile
+                        logger.warn((Supplier<?>) () -> new ParameterizedMessage("{} failed to run warm-up queries",
+                                shard.shardId()), e);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.ingest;
+
+import com.o19s.es.ltr.query.DenseProgramaticDataPoint;
+import com.o19s.es.ltr.query.LtrServices;
+import com.o19s.es.ltr.ranker.RankLibTreeParser;
+import com.o19s.es.ltr.ranker.TreeEnsembleRanker;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.RandomDocumentPicks;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.containsString;
+
+public class StaticScoreProcessorTests extends ESTestCase {
+    // the first tree reads the query-dependent feature 1, the second the static feature 2
+    private static final String MODEL = "## LambdaMART\n" +
+            "<ensemble>\n" +
+            "<tree id=\"1\" weight=\"0.1\">\n" +
+            "<split>\n<feature> 1 </feature>\n<threshold> 0.5 </threshold>\n" +
+            "<split pos=\"left\">\n<output> -1.0 </output>\n</split>\n" +
+            "<split pos=\"right\">\n<output> 1.0 </output>\n</split>\n" +
+            "</split>\n" +
+            "</tree>\n" +
+            "<tree id=\"2\" weight=\"0.1\">\n" +
+            "<split>\n<feature> 2 </feature>\n<threshold> 10.0 </threshold>\n" +
+            "<split pos=\"left\">\n<output> 0.5 </output>\n</split>\n" +
+            "<split pos=\"right\">\n<output> 2.0 </output>\n</split>\n" +
+            "</split>\n" +
+            "</tree>\n" +
+            "</ensemble>\n";
+
+    public void testExecute() throws Exception {
+        TreeEnsembleRanker model = RankLibTreeParser.parse(MODEL);
+        AtomicInteger loads = new AtomicInteger();
+        StaticScoreProcessor processor = new StaticScoreProcessor("tag", () -> {
+                    loads.incrementAndGet();
+                    return model;
+                },
+                new int[] {2}, new String[] {"popularity"}, "ltr_static");
+        Map<String, Object> source = new HashMap<>();
+        source.put("popularity", 12);
+        IngestDocument document = RandomDocumentPicks.randomIngestDocument(random(), source);
+        processor.execute(document);
+        float staticScore = document.getFieldValue("ltr_static", Float.class);
+        assertEquals(0.2F, staticScore, 0.0001F);
+
+        DenseProgramaticDataPoint point = new DenseProgramaticDataPoint(2);
+        point.setFeatureValue(1, 0.7F);
+        point.setFeatureValue(2, 12);
+        assertEquals(model.score(point), staticScore + model.split(new int[] {2}).dynamicTrees().score(point), 0.0001F);
+
+        // missing features are zero
+        document = RandomDocumentPicks.randomIngestDocument(random(), new HashMap<>());
+        processor.execute(document);
+        assertEquals(0.05F, document.getFieldValue("ltr_static", Float.class), 0.0001F);
+        // the model is loaded and split once
+        assertEquals(1, loads.get());
+
+        source.put("popularity", "high");
+        IngestDocument notANumber = RandomDocumentPicks.randomIngestDocument(random(), source);
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class, () -> processor.execute(notANumber));
+        assertThat(e.getMessage(), containsString("is not a number"));
+    }
+
+    public void testFactory() throws Exception {
+        StaticScoreProcessor.Factory factory = new StaticScoreProcessor.Factory(new LtrServices(Settings.EMPTY));
+        Map<String, Object> config = config("2");
+        StaticScoreProcessor processor = factory.create(null, "tag", config);
+        assertEquals(StaticScoreProcessor.TYPE, processor.getType());
+        assertTrue(config.isEmpty());
+
+        ElasticsearchParseException e = expectThrows(ElasticsearchParseException.class,
+                () -> factory.create(null, "tag", config("popularity")));
+        assertThat(e.getMessage(), containsString("is not a feature id"));
+        e = expectThrows(ElasticsearchParseException.class, () -> factory.create(null, "tag", config("0")));
+        assertThat(e.getMessage(), containsString("must be positive"));
+    }
+
+    private static Map<String, Object> config(String featureId) {
+        Map<String, Object> features = new HashMap<>();
+        features.put(featureId, "popularity");
+        Map<String, Object> config = new HashMap<>();
+        config.put("model", "my_model");
+        config.put("version", 1);
+        config.put("features", features);
+        config.put("target_field", "ltr_static");
+        return config;
+    }
+}
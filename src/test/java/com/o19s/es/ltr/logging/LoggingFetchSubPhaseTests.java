@@ -0,0 +1,84 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.logging;
+
+import com.o19s.es.ltr.query.LtrQuery;
+import com.o19s.es.ltr.ranker.NoopRanker;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class LoggingFetchSubPhaseTests extends LuceneTestCase {
+    String[] docs = new String[] { "how now brown cow",
+                                   "brown is the color of cows",
+                                   "brown cow",
+                                   "banana cows are yummy"};
+
+    public void testExtractFeaturesInHitOrder() throws IOException {
+        try (Directory dir = newDirectory()) {
+            RandomIndexWriter writer = new RandomIndexWriter(random(), dir);
+            for (String text : docs) {
+                Document doc = new Document();
+                doc.add(newTextField("field", text, Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            try (IndexReader reader = writer.getReader()) {
+                writer.close();
+                IndexSearcher searcher = newSearcher(reader);
+                searcher.setSimilarity(new ClassicSimilarity());
+
+                List<Query> features = Arrays.asList(new TermQuery(new Term("field", "cow")),
+                        new PhraseQuery("field", "brown", "cow"));
+                LtrQuery query = new LtrQuery(features, NoopRanker.INSTANCE, Arrays.asList("term", "phrase"));
+                int[] docIds = new int[] {3, 0, 2, 1};
+                float[][] vectors = LoggingFetchSubPhase.extractFeatures(searcher, query, docIds);
+                assertEquals(features.size(), vectors.length);
+                for (int f = 0; f < features.size(); f++) {
+                    for (int i = 0; i < docIds.length; i++) {
+                        assertEquals(searcher.explain(features.get(f), docIds[i]).getValue(), vectors[f][i], 0.0001F);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testFindLtrQuery() {
+        LtrQuery query = new LtrQuery(Arrays.asList(new TermQuery(new Term("field", "cow"))), NoopRanker.INSTANCE,
+                Arrays.asList("term"));
+        Map<String, Query> namedQueries = new HashMap<>();
+        namedQueries.put("ltr", new BoostQuery(query, 2.0F));
+        namedQueries.put("term", new TermQuery(new Term("field", "cow")));
+        assertSame(query, LoggingFetchSubPhase.findLtrQuery(namedQueries, "ltr"));
+        assertNull(LoggingFetchSubPhase.findLtrQuery(namedQueries, "term"));
+        assertNull(LoggingFetchSubPhase.findLtrQuery(namedQueries, "missing"));
+    }
+}
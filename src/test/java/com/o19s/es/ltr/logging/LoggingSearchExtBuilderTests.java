@@ -0,0 +1,101 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.logging;
+
+import com.o19s.es.ltr.query.LtrQueryParserPlugin;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.query.MatchQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchModule;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static java.util.Collections.singletonList;
+import static org.hamcrest.Matchers.instanceOf;
+
+public class LoggingSearchExtBuilderTests extends ESTestCase {
+    private final SearchModule searchModule = new SearchModule(Settings.EMPTY, false,
+            singletonList(new LtrQueryParserPlugin(Settings.EMPTY)));
+
+    @Override
+    protected NamedXContentRegistry xContentRegistry() {
+        return new NamedXContentRegistry(searchModule.getNamedXContents());
+    }
+
+    public void testParse() throws IOException {
+        String json = "{\"features\": [{\"match\": {\"title\": \"rambo\"}}, {\"match_phrase\": {\"title\": \"first blood\"}}]}";
+        LoggingSearchExtBuilder ext;
+        try (XContentParser parser = createParser(JsonXContent.jsonXContent, json)) {
+            parser.nextToken();
+            ext = LoggingSearchExtBuilder.parse(parser);
+        }
+        assertEquals(2, ext.features().size());
+        assertThat(ext.features().get(0), instanceOf(MatchQueryBuilder.class));
+
+        LoggingSearchExtBuilder copy = copyWriteable(ext, new NamedWriteableRegistry(searchModule.getNamedWriteables()),
+                LoggingSearchExtBuilder::new);
+        assertEquals(ext, copy);
+        assertEquals(ext.hashCode(), copy.hashCode());
+    }
+
+    public void testRequiresFeatures() throws IOException {
+        try (XContentParser parser = createParser(JsonXContent.jsonXContent, "{}")) {
+            parser.nextToken();
+            expectThrows(ParsingException.class, () -> LoggingSearchExtBuilder.parse(parser));
+        }
+    }
+
+    public void testParseNamedQuery() throws IOException {
+        LoggingSearchExtBuilder ext;
+        try (XContentParser parser = createParser(JsonXContent.jsonXContent, "{\"query\": \"ltr\", \"model_score\": true}")) {
+            parser.nextToken();
+            ext = LoggingSearchExtBuilder.parse(parser);
+        }
+        assertNull(ext.features());
+        assertEquals("ltr", ext.queryName());
+        assertTrue(ext.modelScore());
+
+        LoggingSearchExtBuilder copy = copyWriteable(ext, new NamedWriteableRegistry(searchModule.getNamedWriteables()),
+                LoggingSearchExtBuilder::new);
+        assertEquals(ext, copy);
+    }
+
+    public void testFeaturesOrQuery() throws IOException {
+        String json = "{\"query\": \"ltr\", \"features\": [{\"match\": {\"title\": \"rambo\"}}]}";
+        try (XContentParser parser = createParser(JsonXContent.jsonXContent, json)) {
+            parser.nextToken();
+            expectThrows(ParsingException.class, () -> LoggingSearchExtBuilder.parse(parser));
+        }
+        json = "{\"model_score\": true, \"features\": [{\"match\": {\"title\": \"rambo\"}}]}";
+        try (XContentParser parser = createParser(JsonXContent.jsonXContent, json)) {
+            parser.nextToken();
+            expectThrows(ParsingException.class, () -> LoggingSearchExtBuilder.parse(parser));
+        }
+    }
+
+    public void testEquals() {
+        LoggingSearchExtBuilder ext = new LoggingSearchExtBuilder().features(Arrays.asList(QueryBuilders.termQuery("a", "b")));
+        assertEquals(ext, new LoggingSearchExtBuilder().features(Arrays.asList(QueryBuilders.termQuery("a", "b"))));
+        assertNotEquals(ext, new LoggingSearchExtBuilder().features(Arrays.asList(QueryBuilders.termQuery("a", "c"))));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.query;
+
+import com.o19s.es.ltr.ranker.NoopRanker;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.store.Directory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class FeatureWeightCacheTests extends ESTestCase {
+    private final FeatureWeightCache cache = new FeatureWeightCache(Settings.builder()
+            .put(FeatureWeightCache.CACHE_SIZE.getKey(), 10).build());
+
+    public void testDisabledByDefault() {
+        assertFalse(new FeatureWeightCache(Settings.EMPTY).isEnabled());
+    }
+
+    public void testCachedPerReader() throws IOException {
+        try (Directory dir = newDirectory();
+             IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig())) {
+            addDoc(writer, "brown cow");
+            DirectoryReader reader = DirectoryReader.open(writer);
+            Query feature = new TermQuery(new Term("field", "cow"));
+            Weight weight = cache.weight(new IndexSearcher(reader), feature, true);
+            // another request on the same reader
+            assertSame(weight, cache.weight(new IndexSearcher(reader), new TermQuery(new Term("field", "cow")), true));
+            assertNotSame(weight, cache.weight(new IndexSearcher(reader), feature, false));
+            assertEquals(2, cache.count());
+
+            // a refresh
+            addDoc(writer, "how now brown cow");
+            DirectoryReader newReader = DirectoryReader.openIfChanged(reader);
+            assertNotSame(weight, cache.weight(new IndexSearcher(newReader), feature, true));
+            reader.close();
+            assertEquals(1, cache.count());
+            newReader.close();
+            assertEquals(0, cache.count());
+        }
+    }
+
+    public void testSameScores() throws IOException {
+        try (Directory dir = newDirectory();
+             IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig())) {
+            addDoc(writer, "how now brown cow");
+            addDoc(writer, "brown is the color of cows");
+            addDoc(writer, "brown cow");
+            try (DirectoryReader reader = DirectoryReader.open(writer)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                List<Query> features = Arrays.asList(new TermQuery(new Term("field", "brown")),
+                        new PhraseQuery("field", "brown", "cow"));
+                List<String> names = Arrays.asList("term", "phrase");
+                LtrQuery query = new LtrQuery(features, NoopRanker.INSTANCE, names, null, true, false, 0);
+                LtrQuery cached = new LtrQuery(features, NoopRanker.INSTANCE, names, null, true, false, 0,
+                        new LtrQueryServices().weightCache(cache));
+                for (int doc = 0; doc < reader.maxDoc(); doc++) {
+                    for (int i = 0; i < 2; i++) {
+                        assertEquals(searcher.explain(query, doc).toString(), searcher.explain(cached, doc).toString());
+                    }
+                }
+                assertEquals(2, cache.count());
+            }
+        }
+    }
+
+    private static void addDoc(IndexWriter writer, String text) throws IOException {
+        Document doc = new Document();
+        doc.add(newTextField("field", text, Field.Store.NO));
+        writer.addDocument(doc);
+    }
+}
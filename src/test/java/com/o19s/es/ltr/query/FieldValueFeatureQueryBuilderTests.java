@@ -0,0 +1,78 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.query;
+
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.lucene.search.function.FieldValueFactorFunction;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.test.AbstractQueryTestCase;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+
+public class FieldValueFeatureQueryBuilderTests extends AbstractQueryTestCase<FieldValueFeatureQueryBuilder> {
+
+    protected Collection<Class<? extends Plugin>> getPlugins() {
+        return Collections.singletonList(LtrQueryParserPlugin.class);
+    }
+
+    public void testParse() throws IOException {
+        String json = "{\"ltr_field_value\": {\"field\": \"" + INT_FIELD_NAME + "\", \"missing\": 1.5, \"modifier\": \"log1p\"}}";
+        FieldValueFeatureQueryBuilder builder = (FieldValueFeatureQueryBuilder) parseQuery(json);
+        assertEquals(INT_FIELD_NAME, builder.field());
+        assertEquals(1.5, builder.missing(), 0.0);
+        assertEquals(FieldValueFactorFunction.Modifier.LOG1P, builder.modifier());
+
+        FieldValueFeatureQuery query = (FieldValueFeatureQuery) builder.toQuery(createShardContext());
+        assertEquals(FieldValueFactorFunction.Modifier.LOG1P, query.getModifier());
+    }
+
+    public void testRequiresField() {
+        expectThrows(ParsingException.class, () -> parseQuery("{\"ltr_field_value\": {\"missing\": 0}}"));
+    }
+
+    public void testRequiresNumericField() {
+        FieldValueFeatureQueryBuilder builder = new FieldValueFeatureQueryBuilder(STRING_FIELD_NAME);
+        expectThrows(IllegalArgumentException.class, () -> builder.toQuery(createShardContext()));
+    }
+
+    @Override
+    protected FieldValueFeatureQueryBuilder doCreateTestQueryBuilder() {
+        FieldValueFeatureQueryBuilder builder = new FieldValueFeatureQueryBuilder(
+                randomFrom(INT_FIELD_NAME, DOUBLE_FIELD_NAME, "unmapped_field"));
+        if (randomBoolean()) {
+            builder.missing(randomDouble());
+        }
+        if (randomBoolean()) {
+            builder.modifier(randomFrom(FieldValueFactorFunction.Modifier.values()));
+        }
+        return builder;
+    }
+
+    @Override
+    protected void doAssertLuceneQuery(FieldValueFeatureQueryBuilder queryBuilder, Query query, SearchContext context)
+            throws IOException {
+        assertThat(query, instanceOf(FieldValueFeatureQuery.class));
+        FieldValueFeatureQuery fieldValue = (FieldValueFeatureQuery) query;
+        assertEquals(queryBuilder.field(), fieldValue.getField());
+        assertEquals(queryBuilder.missing(), fieldValue.getMissing());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.query;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.NumericUtils;
+import org.elasticsearch.common.lucene.search.function.FieldValueFactorFunction;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.plain.SortedNumericDVIndexFieldData;
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class FieldValueFeatureQueryTests extends LuceneTestCase {
+    // values of the price field of each doc, by id
+    private static final double[][] PRICES = new double[][] {{3.0, 1.5}, {4.0}, {}};
+
+    private Directory _dir;
+    private IndexReader _reader;
+    private IndexSearcher _searcher;
+    private IndexNumericFieldData _fieldData;
+
+    @Before
+    public void setupIndex() throws IOException {
+        _dir = newDirectory();
+        RandomIndexWriter writer = new RandomIndexWriter(random(), _dir);
+        for (int i = 0; i < PRICES.length; i++) {
+            Document doc = new Document();
+            doc.add(newStringField("id", "" + i, Field.Store.YES));
+            for (double price : PRICES[i]) {
+                doc.add(new SortedNumericDocValuesField("price", NumericUtils.doubleToSortableLong(price)));
+            }
+            writer.addDocument(doc);
+        }
+        _reader = writer.getReader();
+        writer.close();
+        _searcher = newSearcher(_reader);
+        _fieldData = new SortedNumericDVIndexFieldData(new Index("test", "_na_"), "price",
+                IndexNumericFieldData.NumericType.DOUBLE);
+    }
+
+    @After
+    public void closeIndex() throws IOException {
+        _reader.close();
+        _dir.close();
+    }
+
+    public void testMultiValuedScoresMin() throws IOException {
+        Map<String, Float> scores = scores(new FieldValueFeatureQuery("price", _fieldData, null,
+                FieldValueFactorFunction.Modifier.NONE));
+        assertEquals(1.5F, scores.get("0"), 0.0F);
+        assertEquals(4.0F, scores.get("1"), 0.0F);
+    }
+
+    public void testMissing() throws IOException {
+        // without a missing value docs without one don't match
+        Map<String, Float> scores = scores(new FieldValueFeatureQuery("price", _fieldData, null,
+                FieldValueFactorFunction.Modifier.NONE));
+        assertEquals(2, scores.size());
+        assertFalse(scores.containsKey("2"));
+
+        scores = scores(new FieldValueFeatureQuery("price", _fieldData, 2.5, FieldValueFactorFunction.Modifier.NONE));
+        assertEquals(3, scores.size());
+        assertEquals(1.5F, scores.get("0"), 0.0F);
+        assertEquals(2.5F, scores.get("2"), 0.0F);
+    }
+
+    public void testUnmapped() throws IOException {
+        assertTrue(scores(new FieldValueFeatureQuery("price", null, null, FieldValueFactorFunction.Modifier.NONE)).isEmpty());
+
+        Map<String, Float> scores = scores(new FieldValueFeatureQuery("price", null, 2.5,
+                FieldValueFactorFunction.Modifier.NONE));
+        assertEquals(3, scores.size());
+        for (float score : scores.values()) {
+            assertEquals(2.5F, score, 0.0F);
+        }
+    }
+
+    public void testModifier() throws IOException {
+        FieldValueFeatureQuery query = new FieldValueFeatureQuery("price", _fieldData, 2.5,
+                FieldValueFactorFunction.Modifier.SQUARE);
+        Map<String, Float> scores = scores(query);
+        assertEquals(2.25F, scores.get("0"), 0.0F);
+        assertEquals(16.0F, scores.get("1"), 0.0F);
+        // the missing value is modified too
+        assertEquals(6.25F, scores.get("2"), 0.0F);
+
+        TopDocs topDocs = _searcher.search(query, PRICES.length);
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            assertEquals(scoreDoc.score, _searcher.explain(query, scoreDoc.doc).getValue(), 0.0F);
+        }
+    }
+
+    /**
+     * @return the scores of the matching docs, by id
+     */
+    private Map<String, Float> scores(Query query) throws IOException {
+        Map<String, Float> scores = new HashMap<>();
+        for (ScoreDoc scoreDoc : _searcher.search(query, PRICES.length).scoreDocs) {
+            scores.put(_searcher.doc(scoreDoc.doc).get("id"), scoreDoc.score);
+        }
+        return scores;
+    }
+}
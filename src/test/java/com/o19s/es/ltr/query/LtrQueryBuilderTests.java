@@ -19,8 +19,15 @@ package com.o19s.es.ltr.query;
 import com.o19s.es.ltr.query.LtrQuery;
 import com.o19s.es.ltr.query.LtrQueryBuilder;
 import com.o19s.es.ltr.query.LtrQueryParserPlugin;
+import com.o19s.es.ltr.store.ModelStore;
 import org.apache.lucene.search.Query;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.index.Index;
+import org.elasticsearch.index.get.GetResult;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryShardContext;
 import org.elasticsearch.index.query.ScriptQueryBuilder;
@@ -29,10 +36,12 @@ import org.elasticsearch.search.internal.SearchContext;
 import org.elasticsearch.test.AbstractQueryTestCase;
 import org.junit.Test;
 
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.instanceOf;
 
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -159,6 +168,146 @@ public class LtrQueryBuilderTests extends AbstractQueryTestCase<LtrQueryBuilder>
 
     }
 
+    public void testMatchQuery() throws IOException {
+        String scriptSpec = "{\"inline\": \"" + simpleModel + "\"}";
+
+        String ltrQuery =       "{  " +
+                "   \"ltr\": {" +
+                "      \"model\": " + scriptSpec + ",        " +
+                "      \"match\": {\"match\": {\"foo\": \"bar\"}},        " +
+                "      \"features\": [        " +
+                "         {\"match\": {         " +
+                "            \"foo\": \"bar\"     " +
+                "         }}                   " +
+                "      ]                      " +
+                "   } " +
+                "}";
+        LtrQueryBuilder queryBuilder = (LtrQueryBuilder)parseQuery(ltrQuery);
+        assertNotNull(queryBuilder.matchQuery());
+        LtrQuery query = (LtrQuery)queryBuilder.toQuery(createShardContext());
+        assertNotNull(query.getMatchQuery());
+    }
+
+    public void testOnlyFeatureMatches() throws IOException {
+        String scriptSpec = "{\"inline\": \"" + simpleModel + "\"}";
+
+        String ltrQuery =       "{  " +
+                "   \"ltr\": {" +
+                "      \"model\": " + scriptSpec + ",        " +
+                "      \"all_docs\": false,        " +
+                "      \"features\": [        " +
+                "         {\"match\": {         " +
+                "            \"foo\": \"bar\"     " +
+                "         }}                   " +
+                "      ]                      " +
+                "   } " +
+                "}";
+        LtrQueryBuilder queryBuilder = (LtrQueryBuilder)parseQuery(ltrQuery);
+        LtrQuery query = (LtrQuery)queryBuilder.toQuery(createShardContext());
+        assertFalse(query.isAllDocs());
+        assertNull(query.getMatchQuery());
+    }
+
+    public void testSparse() throws IOException {
+        String scriptSpec = "{\"inline\": \"" + simpleModel + "\"}";
+
+        String ltrQuery =       "{  " +
+                "   \"ltr\": {" +
+                "      \"model\": " + scriptSpec + ",        " +
+                "      \"sparse\": true,        " +
+                "      \"features\": [        " +
+                "         {\"match\": {         " +
+                "            \"foo\": \"bar\"     " +
+                "         }}                   " +
+                "      ]                      " +
+                "   } " +
+                "}";
+        LtrQueryBuilder queryBuilder = (LtrQueryBuilder)parseQuery(ltrQuery);
+        assertTrue(queryBuilder.sparse());
+        LtrQuery query = (LtrQuery)queryBuilder.toQuery(createShardContext());
+        assertTrue(query.isSparse());
+    }
+
+    public void testStoredModel() throws IOException {
+        String ltrQuery =       "{  " +
+                "   \"ltr\": {" +
+                "      \"stored_model\": {\"name\": \"stored_foo\", \"version\": 3},        " +
+                "      \"features\": [        " +
+                "         {\"match\": {         " +
+                "            \"foo\": \"bar\"     " +
+                "         }}                   " +
+                "      ]                      " +
+                "   } " +
+                "}";
+        LtrQueryBuilder queryBuilder = (LtrQueryBuilder)parseQuery(ltrQuery);
+        assertEquals("stored_foo", queryBuilder.modelName());
+        assertEquals(Long.valueOf(3), queryBuilder.modelVersion());
+        LtrQuery query = (LtrQuery)queryBuilder.toQuery(createShardContext());
+        assertEquals("LambdaMART", query.getRankModel().name());
+        // compiled once per node
+        queryBuilder.toQuery(createShardContext());
+        assertEquals(1, modelGets);
+
+        // rewriting resolves the model, the query then uses it without going to the store
+        QueryBuilder rewritten = QueryBuilder.rewriteQuery(queryBuilder, createShardContext());
+        assertNotSame(queryBuilder, rewritten);
+        assertEquals(queryBuilder, rewritten);
+        assertSame(rewritten, rewritten.rewrite(createShardContext()));
+        assertEquals("LambdaMART", ((LtrQuery) rewritten.toQuery(createShardContext())).getRankModel().name());
+        assertEquals(1, modelGets);
+
+        ParsingException e = expectThrows(ParsingException.class, () -> parseQuery(ltrQuery.replace(", \"version\": 3", "")));
+        assertThat(e.getMessage(), containsString("requires the version"));
+    }
+
+    private int modelGets;
+
+    @Override
+    protected GetResponse executeGet(GetRequest getRequest) {
+        assertEquals(ModelStore.INDEX, getRequest.index());
+        assertEquals(ModelStore.id("stored_foo", 3), getRequest.id());
+        modelGets++;
+        String json;
+        try {
+            json = XContentFactory.jsonBuilder().startObject()
+                    .field(ModelStore.DEFINITION_FIELD, simpleModel.replace("\\n", "\n").replace("\\\"", "\""))
+                    .endObject().string();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new GetResponse(new GetResult(getRequest.index(), getRequest.type(), getRequest.id(), 0, true,
+                new BytesArray(json), null));
+    }
+
+    public void testTopK() throws IOException {
+        String scriptSpec = "{\"inline\": \"" + simpleModel + "\"}";
+
+        String ltrQuery =       "{  " +
+                "   \"ltr\": {" +
+                "      \"model\": " + scriptSpec + ",        " +
+                "      \"top_k\": 10,        " +
+                "      \"features\": [        " +
+                "         {\"match\": {         " +
+                "            \"foo\": \"bar\"     " +
+                "         }}                   " +
+                "      ]                      " +
+                "   } " +
+                "}";
+        LtrQuery query = (LtrQuery)parseQuery(ltrQuery).toQuery(createShardContext());
+        assertEquals(10, query.getTopK());
+
+        ParsingException e = expectThrows(ParsingException.class, () -> parseQuery(ltrQuery.replace("10", "0")));
+        assertThat(e.getMessage(), containsString("positive top_k"));
+
+        String linearModel = "## Coordinate Ascent\\n" +
+                "## Restart = 5\\n" +
+                "1:0.5";
+        LtrQueryBuilder linear = (LtrQueryBuilder)parseQuery(ltrQuery.replace(simpleModel, linearModel));
+        IllegalArgumentException linearError = expectThrows(IllegalArgumentException.class,
+                () -> linear.toQuery(createShardContext()));
+        assertThat(linearError.getMessage(), containsString("cannot use top_k with linear model"));
+    }
+
 
     @Override
     protected boolean builderGeneratesCacheableQueries() {
@@ -26,17 +26,28 @@ import ciir.umass.edu.metric.NDCGScorer;
 import ciir.umass.edu.utilities.MyThreadPool;
 import com.o19s.es.ltr.query.DenseProgramaticDataPoint;
 import com.o19s.es.ltr.query.LtrQuery;
+import com.o19s.es.ltr.ranker.LinearRanker;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.RankLibRanker;
+import com.o19s.es.ltr.ranker.RankLibTreeParser;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.RandomIndexWriter;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermContext;
 import org.apache.lucene.queries.BlendedTermQuery;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Explanation;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.PhraseQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.similarities.ClassicSimilarity;
@@ -46,6 +57,10 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
 import org.apache.lucene.document.Field.Store;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.search.internal.ContextIndexSearcher;
+import org.elasticsearch.search.profile.ProfileResult;
+import org.elasticsearch.search.profile.query.QueryProfiler;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -54,7 +69,9 @@ import org.junit.Test;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by doug on 12/24/16.
@@ -253,6 +270,47 @@ public class LtrQueryTests extends LuceneTestCase {
             assertEquals(expl.getValue(), queryScore, 0.01);
             checkFeatureNames(expl, featureNames);
         }
+
+        // And once more with the model compiled to flat arrays
+        ltrQuery = new LtrQuery(features, RankLibTreeParser.parse(modelAsStr), featureNames);
+        topDocs = searcherUnderTest.search(ltrQuery, 10);
+        scoreDocs = topDocs.scoreDocs;
+        assert(scoreDocs.length == docs.length);
+        for (ScoreDoc scoreDoc: scoreDocs) {
+            Document d = searcherUnderTest.doc(scoreDoc.doc);
+            String idVal = d.get("id");
+            int docId = Integer.decode(idVal);
+            assertEquals(scoresAgain[docId], scoreDoc.score, 0.01);
+        }
+
+        // Cascading keeps the top documents and their scores
+        LtrQuery compiled = new LtrQuery(features, RankLibTreeParser.parse(modelAsStr), featureNames);
+        LtrQuery cascade = new LtrQuery(features, compiled.getRankModel(), featureNames, null, true, false, 2);
+        assertSameTopDocs(searcherUnderTest.search(compiled, 2), searcherUnderTest.search(cascade, 2));
+
+        // Sparse vectors must score like dense ones, through RankLib and compiled
+        checkSparseScores(new LtrQuery(features, rankerAgain, featureNames), scoresAgain);
+        checkSparseScores(new LtrQuery(features, RankLibTreeParser.parse(modelAsStr), featureNames), scoresAgain);
+    }
+
+    private void assertSameTopDocs(TopDocs expected, TopDocs actual) {
+        assertEquals(expected.scoreDocs.length, actual.scoreDocs.length);
+        for (int i = 0; i < expected.scoreDocs.length; i++) {
+            assertEquals(expected.scoreDocs[i].doc, actual.scoreDocs[i].doc);
+            assertEquals(expected.scoreDocs[i].score, actual.scoreDocs[i].score, 0.0F);
+        }
+    }
+
+    private void checkSparseScores(LtrQuery dense, float[] expectedScores) throws IOException {
+        for (boolean allDocs : new boolean[] {true, false}) {
+            LtrQuery sparse = new LtrQuery(dense.getFeatures(), dense.getRankModel(), dense.getFeatureNames(),
+                    null, allDocs, true);
+            TopDocs topDocs = searcherUnderTest.search(sparse, 10);
+            for (ScoreDoc scoreDoc: topDocs.scoreDocs) {
+                int docId = Integer.decode(searcherUnderTest.doc(scoreDoc.doc).get("id"));
+                assertEquals(expectedScores[docId], scoreDoc.score, 0.01);
+            }
+        }
     }
 
 
@@ -306,6 +364,235 @@ public class LtrQueryTests extends LuceneTestCase {
         checkModelWithFeatures(features, null);
     }
 
+    String linearModel = "## Coordinate Ascent\n" +
+            "## Restart = 5\n" +
+            "## MaxIteration = 25\n" +
+            "## StepBase = 0.05\n" +
+            "## StepScale = 2.0\n" +
+            "## Tolerance = 0.001\n" +
+            "## Regularized = false\n" +
+            "## Slack = 0.001\n" +
+            "1:0.5 2:0.5";
+
+    public void testOnlyScoresFeatureMatches() throws IOException {
+        List<Query> features = Arrays.asList(new Query[] {new TermQuery(new Term("field", "brown")),
+                new PhraseQuery("field", "brown", "cow")});
+        List<String> featureNames = Arrays.asList(new String[] {null, null});
+        Ranker ranker = new RankerFactory().loadRankerFromString(linearModel);
+
+        LtrQuery allDocs = new LtrQuery(features, ranker, featureNames);
+        LtrQuery matchingOnly = new LtrQuery(features, ranker, featureNames, null, false);
+        TopDocs allTopDocs = searcherUnderTest.search(allDocs, 10);
+        TopDocs matchingTopDocs = searcherUnderTest.search(matchingOnly, 10);
+        assertEquals(docs.length, allTopDocs.totalHits);
+        // "banana cows are yummy" matches neither feature
+        assertEquals(3, matchingTopDocs.totalHits);
+        for (ScoreDoc scoreDoc: matchingTopDocs.scoreDocs) {
+            int docId = Integer.decode(searcherUnderTest.doc(scoreDoc.doc).get("id"));
+            assertNotEquals(3, docId);
+            assertEquals(searcherUnderTest.explain(allDocs, scoreDoc.doc).getValue(), scoreDoc.score, 0.01);
+            assertTrue(searcherUnderTest.explain(matchingOnly, scoreDoc.doc).isMatch());
+        }
+    }
+
+    public void testOnlyScoresMatchQuery() throws IOException {
+        List<Query> features = Arrays.asList(new Query[] {new TermQuery(new Term("field", "brown")),
+                new PhraseQuery("field", "brown", "cow")});
+        List<String> featureNames = Arrays.asList(new String[] {null, null});
+        Ranker ranker = new RankerFactory().loadRankerFromString(linearModel);
+
+        Query match = new TermQuery(new Term("field", "cow"));
+        LtrQuery ltrQuery = new LtrQuery(features, ranker, featureNames, match, false);
+        TopDocs topDocs = searcherUnderTest.search(ltrQuery, 10);
+        assertEquals(searcherUnderTest.count(match), topDocs.totalHits);
+        for (ScoreDoc scoreDoc: topDocs.scoreDocs) {
+            String text = searcherUnderTest.doc(scoreDoc.doc).get("field");
+            assertTrue(Arrays.asList(text.split(" ")).contains("cow"));
+        }
+    }
+
+    public void testLazyFeatures() throws IOException {
+        List<Query> features = Arrays.asList(new Query[] {new TermQuery(new Term("field", "brown")),
+                new PhraseQuery("field", "brown", "cow")});
+        List<String> featureNames = Arrays.asList(new String[] {null, null});
+        // the phrase is never read by the model
+        Ranker ranker = new RankerFactory().loadRankerFromString(linearModel.replace("1:0.5 2:0.5", "1:0.5"));
+        LtrQuery ltrQuery = new LtrQuery(features, new RankLibRanker(ranker), featureNames);
+
+        LtrQuery.LtrWeight weight = (LtrQuery.LtrWeight) ltrQuery.createWeight(searcherUnderTest, true);
+        for (LeafReaderContext leaf : searcherUnderTest.getIndexReader().leaves()) {
+            LtrScorer scorer = (LtrScorer) weight.scorer(leaf);
+            if (scorer == null) {
+                continue;
+            }
+            while (scorer.iterator().nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                float score = scorer.score();
+                assertTrue(scorer._features.isComputed(1));
+                assertFalse(scorer._features.isComputed(2));
+                assertEquals(searcherUnderTest.explain(ltrQuery, leaf.docBase + scorer.docID()).getValue(), score, 0.0001);
+            }
+        }
+    }
+
+    public void testLinearModel() throws IOException {
+        List<Query> features = Arrays.asList(new Query[] {new TermQuery(new Term("field", "brown")),
+                new PhraseQuery("field", "banana", "cows"), new TermQuery(new Term("field", "cow"))});
+        List<String> featureNames = Arrays.asList(new String[] {null, null, null});
+        // the phrase has no weight
+        LinearRanker ranker = new LinearRanker("linear", new int[] {1, 3}, new float[] {0.5F, 2.0F}, 1.0F);
+
+        LtrQuery ltrQuery = new LtrQuery(features, ranker, featureNames);
+        LtrQuery.LtrWeight weight = (LtrQuery.LtrWeight) ltrQuery.createWeight(searcherUnderTest, true);
+        for (LeafReaderContext leaf : searcherUnderTest.getIndexReader().leaves()) {
+            LtrScorer scorer = (LtrScorer) weight.scorer(leaf);
+            // every document is scored, the phrase is never looked at
+            assertTrue(scorer._subScorers[1] instanceof NoopScorer);
+            while (scorer.iterator().nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                assertEquals(searcherUnderTest.explain(ltrQuery, leaf.docBase + scorer.docID()).getValue(),
+                        scorer.score(), 0.0001);
+            }
+        }
+        for (boolean allDocs : new boolean[] {true, false}) {
+            for (boolean sparse : new boolean[] {true, false}) {
+                LtrQuery query = new LtrQuery(features, ranker, featureNames, null, allDocs, sparse);
+                TopDocs topDocs = searcherUnderTest.search(query, 10);
+                // "banana cows are yummy" only matches the phrase, it still matches the query
+                assertEquals(docs.length, topDocs.totalHits);
+                for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                    assertEquals(searcherUnderTest.explain(query, scoreDoc.doc).getValue(), scoreDoc.score, 0.0001F);
+                }
+            }
+        }
+
+        LtrQuery invalid = new LtrQuery(features.subList(0, 2), ranker, featureNames.subList(0, 2));
+        expectThrows(IllegalArgumentException.class, () -> invalid.createWeight(searcherUnderTest, true));
+    }
+
+    public void testSharedScorers() throws IOException {
+        Query brown = new TermQuery(new Term("field", "brown"));
+        List<Query> features = Arrays.asList(new Query[] {brown,
+                new PhraseQuery("field", "brown", "cow"),
+                new TermQuery(new Term("field", "brown")),
+                new ConstantScoreQuery(brown),
+                new BoostQuery(new ConstantScoreQuery(new TermQuery(new Term("field", "cow"))), 2.0F)});
+        List<String> featureNames = Arrays.asList(new String[] {null, null, null, null, null});
+        LinearRanker ranker = new LinearRanker("shared", new int[] {1, 2, 3, 4, 5},
+                new float[] {1.0F, 2.0F, 3.0F, 4.0F, 5.0F}, 0.0F);
+
+        int[] docs = new int[indexReaderUnderTest.maxDoc()];
+        for (int doc = 0; doc < docs.length; doc++) {
+            docs[doc] = doc;
+        }
+        LtrQuery ltrQuery = new LtrQuery(features, ranker, featureNames);
+        float[][] values = ltrQuery.extractFeatures(searcherUnderTest, docs);
+        for (int f = 0; f < features.size(); f++) {
+            for (int doc = 0; doc < docs.length; doc++) {
+                assertEquals(searcherUnderTest.explain(features.get(f), doc).getValue(), values[f][doc], 0.0001F);
+            }
+        }
+        for (boolean allDocs : new boolean[] {true, false}) {
+            for (boolean sparse : new boolean[] {true, false}) {
+                LtrQuery query = new LtrQuery(features, ranker, featureNames, null, allDocs, sparse);
+                for (ScoreDoc scoreDoc : searcherUnderTest.search(query, 10).scoreDocs) {
+                    assertEquals(searcherUnderTest.explain(query, scoreDoc.doc).getValue(), scoreDoc.score, 0.0001F);
+                }
+            }
+        }
+    }
+
+    public void testTopScoresOfferedOnce() throws IOException {
+        List<Query> features = Arrays.asList(new Query[] {new TermQuery(new Term("field", "brown")),
+                new PhraseQuery("field", "brown", "cow")});
+        List<String> featureNames = Arrays.asList(new String[] {null, null});
+        LtrRanker ranker = new RankLibRanker(new RankerFactory().loadRankerFromString(linearModel));
+        LtrQuery ltrQuery = new LtrQuery(features, ranker, featureNames, null, true, false, 2);
+        LtrQuery.LtrWeight weight = (LtrQuery.LtrWeight) ltrQuery.createWeight(searcherUnderTest, true);
+        LtrScorer scorer = (LtrScorer) weight.scorer(searcherUnderTest.getIndexReader().leaves().get(0));
+        assertNotEquals(DocIdSetIterator.NO_MORE_DOCS, scorer.iterator().nextDoc());
+        float score = scorer.score();
+        // collectors may ask for the score of a document more than once
+        assertEquals(score, scorer.score(), 0.0F);
+        assertEquals(Float.NEGATIVE_INFINITY, scorer._topScores.threshold(), 0.0F);
+        if (scorer.iterator().nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+            scorer.score();
+            assertNotEquals(Float.NEGATIVE_INFINITY, scorer._topScores.threshold(), 0.0F);
+        }
+    }
+
+    public void testTwoPhaseIteration() throws IOException {
+        // both phrases have all their terms in "how now brown cow", neither matches it
+        List<Query> features = Arrays.asList(new Query[] {new PhraseQuery("field", "now", "cow"),
+                new PhraseQuery("field", "banana", "cows")});
+        List<String> featureNames = Arrays.asList(new String[] {null, null});
+        Ranker ranker = new RankerFactory().loadRankerFromString(linearModel);
+
+        for (boolean sparse : new boolean[] {true, false}) {
+            LtrQuery ltrQuery = new LtrQuery(features, ranker, featureNames, null, false, sparse);
+            LtrQuery.LtrWeight weight = (LtrQuery.LtrWeight) ltrQuery.createWeight(searcherUnderTest, true);
+            for (LeafReaderContext leaf : searcherUnderTest.getIndexReader().leaves()) {
+                Scorer scorer = weight.scorer(leaf);
+                if (scorer != null) {
+                    assertNotNull(scorer.twoPhaseIterator());
+                }
+            }
+            // "banana cows are yummy" only
+            assertEquals(1, searcherUnderTest.count(ltrQuery));
+
+            Query filtered = new BooleanQuery.Builder()
+                    .add(ltrQuery, BooleanClause.Occur.MUST)
+                    .add(new TermQuery(new Term("field", "cows")), BooleanClause.Occur.FILTER)
+                    .build();
+            TopDocs topDocs = searcherUnderTest.search(filtered, 10);
+            assertEquals(1, topDocs.totalHits);
+            assertEquals("3", searcherUnderTest.doc(topDocs.scoreDocs[0].doc).get("id"));
+            assertEquals(searcherUnderTest.explain(ltrQuery, topDocs.scoreDocs[0].doc).getValue(),
+                    topDocs.scoreDocs[0].score, 0.0001F);
+        }
+    }
+
+    public void testProfile() throws IOException {
+        List<Query> features = Arrays.asList(new Query[] {new TermQuery(new Term("field", "brown")),
+                new PhraseQuery("field", "brown", "cow")});
+        List<String> featureNames = Arrays.asList(new String[] {"brown", null});
+        LtrQuery ltrQuery = new LtrQuery(features, new RankerFactory().loadRankerFromString(linearModel), featureNames);
+        assertEquals("LTR model: " + ltrQuery.getRankModel().name() + "(field:brown, field:\"brown cow\")",
+                ltrQuery.toString());
+
+        // a searcher that doesn't profile builds no model node
+        ContextIndexSearcher searcher = contextSearcher();
+        LeafReaderContext leaf = searcher.getIndexReader().leaves().get(0);
+        assertNull(((LtrScorer) searcher.createNormalizedWeight(ltrQuery, true).scorer(leaf))._modelScorer);
+
+        ContextIndexSearcher profiled = contextSearcher();
+        QueryProfiler profiler = new QueryProfiler();
+        profiled.setProfiler(profiler);
+        assertSameTopDocs(searcherUnderTest.search(ltrQuery, 10), profiled.search(ltrQuery, 10));
+
+        List<ProfileResult> tree = profiler.getTree();
+        assertEquals(1, tree.size());
+        Map<String, Long> model = null;
+        List<String> names = new ArrayList<>();
+        for (ProfileResult profile : tree.get(0).getProfiledChildren()) {
+            if (profile.getQueryName().equals(LtrProfile.ModelQuery.class.getSimpleName())) {
+                model = profile.getTimeBreakdown();
+            } else if (profile.getQueryName().equals(LtrProfile.FeatureQuery.class.getSimpleName())) {
+                names.add(profile.getLuceneDescription());
+                assertTrue(profile.getTimeBreakdown().get("score_count") > 0);
+            }
+        }
+        assertNotNull(model);
+        assertTrue(model.get("score_count") > 0);
+        Collections.sort(names);
+        assertEquals(Arrays.asList("brown", "feature_2"), names);
+    }
+
+    private ContextIndexSearcher contextSearcher() {
+        IndexSearcher searcher = new IndexSearcher(indexReaderUnderTest);
+        searcher.setSimilarity(new ClassicSimilarity());
+        return new ContextIndexSearcher(new Engine.Searcher("test", searcher), null,
+                IndexSearcher.getDefaultQueryCachingPolicy());
+    }
+
     @After
     public void closeStuff() throws IOException {
         indexReaderUnderTest.close();
@@ -0,0 +1,152 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.query;
+
+import com.o19s.es.ltr.ranker.LinearRanker;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.threadpool.TestThreadPool;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ParallelLtrBulkScorerTests extends ESTestCase {
+    private static final String[] WORDS = new String[] {"how", "now", "brown", "cow", "banana", "cows"};
+
+    public void testSameTopDocsAsSerial() throws IOException {
+        Settings settings = Settings.builder()
+                .put(LtrExecutor.SLICE_SIZE.getKey(), 1024)
+                .put("processors", 4)
+                .build();
+        ThreadPool threadPool = new TestThreadPool(getTestName(), LtrExecutor.executorBuilder(settings));
+        try (Directory dir = newDirectory();
+             IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig())) {
+            int numDocs = scaledRandomIntBetween(3000, 10000);
+            for (int i = 0; i < numDocs; i++) {
+                StringBuilder text = new StringBuilder();
+                for (int w = randomIntBetween(1, 6); w > 0; w--) {
+                    text.append(randomFrom(WORDS)).append(' ');
+                }
+                Document doc = new Document();
+                doc.add(newTextField("field", text.toString(), Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+            // slices must skip deleted documents
+            writer.deleteDocuments(new Term("field", "banana"));
+            try (DirectoryReader reader = DirectoryReader.open(writer)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                LtrExecutor executor = new LtrExecutor(settings);
+                executor.setThreadPool(threadPool);
+                List<Query> features = Arrays.asList(new TermQuery(new Term("field", "brown")),
+                        new PhraseQuery("field", "brown", "cow"));
+                List<String> names = Arrays.asList("term", "phrase");
+                LinearRanker ranker = new LinearRanker("linear", new int[] {1, 2}, new float[] {0.5F, 2.0F}, 0.1F);
+                LtrCircuitBreaker breaker = new LtrCircuitBreaker(Settings.EMPTY);
+                for (boolean allDocs : new boolean[] {true, false}) {
+                    for (boolean sparse : new boolean[] {true, false}) {
+                        LtrQuery serial = new LtrQuery(features, ranker, names, null, allDocs, sparse, 0);
+                        TopDocs expected = searcher.search(serial, 100);
+                        LtrQuery parallel = new LtrQuery(features, ranker, names, null, allDocs, sparse, 0,
+                                new LtrQueryServices().slicer(executor).breaker(breaker));
+                        assertSameTopDocs(expected, searcher.search(parallel, 100));
+                        // blocks evaluated on the pool
+                        LtrQuery isolated = new LtrQuery(features, ranker, names, null, allDocs, sparse, 0,
+                                new LtrQueryServices().evaluator(executor).breaker(breaker));
+                        assertSameTopDocs(expected, searcher.search(isolated, 100));
+                        assertEquals(0, breaker.getUsed());
+                    }
+                }
+            }
+        } finally {
+            ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void assertSameTopDocs(TopDocs expected, TopDocs actual) {
+        assertEquals(expected.totalHits, actual.totalHits);
+        assertEquals(expected.scoreDocs.length, actual.scoreDocs.length);
+        for (int i = 0; i < expected.scoreDocs.length; i++) {
+            assertEquals(expected.scoreDocs[i].doc, actual.scoreDocs[i].doc);
+            assertEquals(expected.scoreDocs[i].score, actual.scoreDocs[i].score, 0.0F);
+        }
+    }
+
+    public void testCancelWaitsForRunningSlice() throws Exception {
+        AtomicBoolean started = new AtomicBoolean();
+        AtomicBoolean release = new AtomicBoolean();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        ParallelLtrBulkScorer.SliceTask task = new ParallelLtrBulkScorer.SliceTask(() -> {
+            started.set(true);
+            while (!release.get()) {
+                Thread.yield();
+            }
+            // an interrupt would close the file channels the slice reads
+            interrupted.set(Thread.currentThread().isInterrupted());
+            return new ParallelLtrBulkScorer.Slice(new AtomicBoolean());
+        });
+        Thread scoring = new Thread(task);
+        scoring.start();
+        assertBusy(() -> assertTrue(started.get()));
+        Thread cancelling = new Thread(task::cancelAndAwait);
+        cancelling.start();
+        cancelling.join(100);
+        assertTrue("cancel returned while the slice was still scored", cancelling.isAlive());
+        release.set(true);
+        cancelling.join();
+        scoring.join();
+        assertTrue(task.isCancelled());
+        assertFalse(interrupted.get());
+    }
+
+    public void testCancelledSliceStops() throws IOException {
+        AtomicBoolean cancelled = new AtomicBoolean();
+        ParallelLtrBulkScorer.Slice slice = new ParallelLtrBulkScorer.Slice(cancelled);
+        slice.setScorer(new LtrBulkScorer.BlockScorer(null));
+        slice.collect(0);
+        cancelled.set(true);
+        expectThrows(CollectionTerminatedException.class, () -> slice.collect(1));
+    }
+
+    public void testCancelBeforeRun() {
+        AtomicBoolean ran = new AtomicBoolean();
+        ParallelLtrBulkScorer.SliceTask task = new ParallelLtrBulkScorer.SliceTask(() -> {
+            ran.set(true);
+            return new ParallelLtrBulkScorer.Slice(new AtomicBoolean());
+        });
+        task.cancelAndAwait();
+        // the pool may still pick it up later
+        task.run();
+        assertFalse(ran.get());
+        assertTrue(task.isCancelled());
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.ranker;
+
+import ciir.umass.edu.learning.DataPoint;
+import ciir.umass.edu.learning.RankerFactory;
+import com.o19s.es.ltr.query.DenseProgramaticDataPoint;
+import org.apache.lucene.util.LuceneTestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+@LuceneTestCase.SuppressSysoutChecks(bugUrl = "RankLib prints when loading models")
+public class CompiledModelFormatTests extends LuceneTestCase {
+
+    public void testTreeEnsemble() throws IOException {
+        TreeEnsembleRanker trees = RankLibTreeParser.parse("## LambdaMART\n" + TreeEnsembleRankerTests.ensemble());
+        assertSameModel(trees, CompiledModelFormat.read(ByteBuffer.wrap(CompiledModelFormat.toBytes(trees))));
+        assertSameModel(trees, CompiledModelFormat.fromBase64(CompiledModelFormat.toBase64(trees)));
+
+        Path file = createTempDir().resolve("trees.ltrb");
+        Files.write(file, CompiledModelFormat.toBytes(trees));
+        assertSameModel(trees, CompiledModelFormat.readFile(file));
+    }
+
+    public void testLinear() {
+        LinearRanker linear = LinearRanker.fromRankLib(new RankerFactory().loadRankerFromString(LinearRankerTests.COORD_ASCENT));
+        LtrRanker read = CompiledModelFormat.fromBase64(CompiledModelFormat.toBase64(linear));
+        assertTrue(read instanceof LinearRanker);
+        assertSameModel(linear, read);
+    }
+
+    public void testCorrupted() {
+        TreeEnsembleRanker trees = RankLibTreeParser.parse("## LambdaMART\n" + TreeEnsembleRankerTests.ensemble());
+        byte[] bytes = CompiledModelFormat.toBytes(trees);
+        expectThrows(IllegalArgumentException.class,
+                () -> CompiledModelFormat.read(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length - 1))));
+        byte[] badMagic = bytes.clone();
+        badMagic[0]++;
+        expectThrows(IllegalArgumentException.class, () -> CompiledModelFormat.read(ByteBuffer.wrap(badMagic)));
+        // point the first root out of the nodes
+        byte[] badRoot = bytes.clone();
+        int rootsOffset = 4 + 4 + 1 + 4 + trees.name().length() + 4;
+        ByteBuffer.wrap(badRoot).order(ByteOrder.LITTLE_ENDIAN).putInt(rootsOffset, trees.numNodes());
+        expectThrows(IllegalArgumentException.class, () -> CompiledModelFormat.read(ByteBuffer.wrap(badRoot)));
+    }
+
+    public void testNoBinaryForm() {
+        LtrRanker rankLib = new RankLibRanker(new RankerFactory().loadRankerFromString(LinearRankerTests.COORD_ASCENT));
+        assertFalse(CompiledModelFormat.canWrite(rankLib));
+        expectThrows(IllegalArgumentException.class, () -> CompiledModelFormat.toBytes(rankLib));
+    }
+
+    private void assertSameModel(LtrRanker expected, LtrRanker actual) {
+        assertEquals(expected.name(), actual.name());
+        for (int i = 0; i < 50; i++) {
+            DataPoint point = new DenseProgramaticDataPoint(3);
+            for (int fid = 1; fid <= 3; fid++) {
+                point.setFeatureValue(fid, random().nextFloat() * 2);
+            }
+            assertEquals(expected.score(point), actual.score(point), 0.0F);
+        }
+    }
+}
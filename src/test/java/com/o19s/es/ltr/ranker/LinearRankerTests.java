@@ -0,0 +1,77 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.ranker;
+
+import ciir.umass.edu.learning.DataPoint;
+import ciir.umass.edu.learning.Ranker;
+import ciir.umass.edu.learning.RankerFactory;
+import com.o19s.es.ltr.query.DenseProgramaticDataPoint;
+import org.apache.lucene.util.LuceneTestCase;
+
+@LuceneTestCase.SuppressSysoutChecks(bugUrl = "RankLib prints when loading models")
+public class LinearRankerTests extends LuceneTestCase {
+    static final String COORD_ASCENT = "## Coordinate Ascent\n" +
+            "## Restart = 5\n" +
+            "## MaxIteration = 25\n" +
+            "## StepBase = 0.05\n" +
+            "## StepScale = 2.0\n" +
+            "## Tolerance = 0.001\n" +
+            "## Regularized = false\n" +
+            "## Slack = 0.001\n" +
+            "1:0.5 3:0.25";
+
+    public void testCoordinateAscent() {
+        Ranker rankLib = new RankerFactory().loadRankerFromString(COORD_ASCENT);
+        assertTrue(LinearRanker.isLinear(rankLib));
+        LinearRanker linear = LinearRanker.fromRankLib(rankLib);
+        assertEquals(LinearRanker.COORDINATE_ASCENT, linear.name());
+
+        int numDocs = 50;
+        float[][] block = new float[3][numDocs];
+        float[] expected = new float[numDocs];
+        for (int i = 0; i < numDocs; i++) {
+            DataPoint point = new DenseProgramaticDataPoint(3);
+            for (int fid = 1; fid <= 3; fid++) {
+                point.setFeatureValue(fid, random().nextFloat() * 10);
+                block[fid - 1][i] = point.getFeatureValue(fid);
+            }
+            assertEquals(rankLib.eval(point), linear.score(point), 0.0001);
+            expected[i] = linear.score(point);
+        }
+        float[] scores = new float[numDocs];
+        linear.score(block, numDocs, scores);
+        assertArrayEquals(expected, scores, 0.0F);
+    }
+
+    public void testSparse() {
+        LinearRanker linear = LinearRanker.fromRankLib(new RankerFactory().loadRankerFromString(COORD_ASCENT));
+        SparseDataPoint sparse = new SparseDataPoint(3);
+        DataPoint dense = new DenseProgramaticDataPoint(3);
+        sparse.setFeatureValue(3, 4.0F);
+        dense.setFeatureValue(3, 4.0F);
+        assertEquals(linear.score(dense), linear.scoreSparse(sparse), 0.0F);
+        // reset hides previous values
+        sparse.reset();
+        assertEquals(0, sparse.size());
+        assertEquals(0.0F, sparse.getFeatureValue(3), 0.0F);
+        assertEquals(linear.score(new DenseProgramaticDataPoint(3)), linear.scoreSparse(sparse), 0.0F);
+    }
+
+    public void testTooFewFeatures() {
+        LinearRanker linear = LinearRanker.fromRankLib(new RankerFactory().loadRankerFromString(COORD_ASCENT));
+        expectThrows(IllegalArgumentException.class, () -> linear.score(new float[2][1], 1, new float[1]));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.ranker;
+
+import ciir.umass.edu.learning.DataPoint;
+import ciir.umass.edu.learning.Ranker;
+import ciir.umass.edu.learning.RankerFactory;
+import com.o19s.es.ltr.query.DenseProgramaticDataPoint;
+import org.apache.lucene.util.LuceneTestCase;
+
+@LuceneTestCase.SuppressSysoutChecks(bugUrl = "RankLib prints when loading models")
+public class TreeEnsembleRankerTests extends LuceneTestCase {
+
+    static String tree(float weight, String root) {
+        return "\t<tree id=\"1\" weight=\"" + weight + "\">\n" + root + "\t</tree>\n";
+    }
+
+    static String split(int feature, float threshold, String left, String right) {
+        return "<split>\n" +
+                "<feature> " + feature + " </feature>\n" +
+                "<threshold> " + threshold + " </threshold>\n" +
+                left.replaceFirst("<split>", "<split pos=\"left\">") +
+                right.replaceFirst("<split>", "<split pos=\"right\">") +
+                "</split>\n";
+    }
+
+    static String leaf(float output) {
+        return "<split>\n<output> " + output + " </output>\n</split>\n";
+    }
+
+    static String ensemble() {
+        return "<ensemble>\n" +
+                tree(0.1F, split(1, 0.45F,
+                        split(2, 0.0F, leaf(-2.0F), leaf(-1.34F)),
+                        split(1, 0.61F, leaf(0.3F), split(2, 1.5F, leaf(1.0F), leaf(2.0F))))) +
+                tree(0.1F, split(2, 0.8F, leaf(0.5F), leaf(-0.5F))) +
+                tree(0.1F, split(1, 0.9F, leaf(0.25F), leaf(-0.25F))) +
+                "</ensemble>\n";
+    }
+
+    public void testLambdaMART() {
+        String model = "## LambdaMART\n" +
+                "## No. of trees = 3\n" +
+                "## No. of leaves = 10\n" +
+                "## No. of threshold candidates = 256\n" +
+                "## Learning rate = 0.1\n" +
+                "## Stop early = 100\n" +
+                "\n" + ensemble();
+        assertSameScores(model, 15);
+    }
+
+    public void testRandomForests() {
+        String model = "## Random Forests\n" +
+                "## No. of bags = 2\n" +
+                "## Sub-sampling = 1.0\n" +
+                "## Feature-sampling = 1.0\n" +
+                "## No. of trees = 3\n" +
+                "## No. of leaves = 100\n" +
+                "## No. of threshold candidates = 256\n" +
+                "## Learning rate = 0.1\n" +
+                "\n" + ensemble() + "\n" + ensemble().replace("0.45", "0.2");
+        assertSameScores(model, 30);
+    }
+
+    public void testCascade() {
+        TreeEnsembleRanker compiled = RankLibTreeParser.parse("## LambdaMART\n" + ensemble());
+        // best leaves: 0.1 * 2.0 + 0.1 * 0.5 + 0.1 * 0.25
+        assertEquals(0.275F, compiled.maxScore(), 0.0001F);
+        for (int i = 0; i < 100; i++) {
+            DataPoint point = new DenseProgramaticDataPoint(2);
+            point.setFeatureValue(1, random().nextFloat());
+            point.setFeatureValue(2, random().nextFloat() * 2);
+            float score = compiled.score(point);
+            float threshold = random().nextFloat() * 0.6F - 0.3F;
+            float bounded = compiled.score(point, threshold);
+            if (score > threshold) {
+                assertEquals(score, bounded, 0.0F);
+            } else {
+                assertTrue(bounded <= threshold);
+                assertTrue(bounded >= score);
+            }
+        }
+        assertTrue(compiled.score(new DenseProgramaticDataPoint(2), 1.0F) < 1.0F);
+    }
+
+    public void testStaticTrees() {
+        TreeEnsembleRanker compiled = RankLibTreeParser.parse("## LambdaMART\n" + ensemble());
+        // only the last tree reads no feature other than 1
+        TreeEnsembleRanker.Split split = compiled.split(new int[] {1});
+        TreeEnsembleRanker staticTrees = split.staticTrees();
+        TreeEnsembleRanker dynamicTrees = split.dynamicTrees();
+        assertEquals(1, staticTrees.numTrees());
+        assertEquals(3, staticTrees.numNodes());
+        assertEquals(2, dynamicTrees.numTrees());
+        assertArrayEquals(new int[] {1, 2}, dynamicTrees.usedFeatureIds());
+        assertEquals(0, compiled.split(new int[] {2, 1}).dynamicTrees().numTrees());
+
+        // the static score is read as a third feature
+        StaticScoreRanker ranker = new StaticScoreRanker(compiled, new int[] {1}, 3);
+        assertArrayEquals(new int[] {1, 2, 3}, ranker.featureIds());
+        assertEquals(ranker, new StaticScoreRanker(compiled, new int[] {1}, 3));
+        assertEquals(ranker.hashCode(), new StaticScoreRanker(compiled, new int[] {1}, 3).hashCode());
+        assertNotEquals(ranker, new StaticScoreRanker(compiled, new int[] {1, 2}, 3));
+        assertNotEquals(ranker, new StaticScoreRanker(RankLibTreeParser.parse("## LambdaMART\n" + ensemble()), new int[] {1}, 3));
+        int numDocs = 100;
+        float[][] block = new float[3][numDocs];
+        float[] expected = new float[numDocs];
+        SparseDataPoint sparse = new SparseDataPoint(3);
+        for (int d = 0; d < numDocs; d++) {
+            DataPoint point = new DenseProgramaticDataPoint(3);
+            point.setFeatureValue(1, random().nextFloat());
+            point.setFeatureValue(2, random().nextFloat() * 2);
+            point.setFeatureValue(3, staticTrees.score(point));
+            expected[d] = compiled.score(point);
+            assertEquals(expected[d], ranker.score(point), 0.0001F);
+            float threshold = random().nextFloat() * 0.6F - 0.3F;
+            if (expected[d] > threshold) {
+                assertEquals(expected[d], ranker.score(point, threshold), 0.0001F);
+            }
+            sparse.reset();
+            for (int fid = 1; fid <= 3; fid++) {
+                sparse.setFeatureValue(fid, point.getFeatureValue(fid));
+                block[fid - 1][d] = point.getFeatureValue(fid);
+            }
+            assertEquals(expected[d], ranker.scoreSparse(sparse), 0.0001F);
+        }
+        float[] scores = new float[numDocs];
+        ranker.score(block, numDocs, scores);
+        assertArrayEquals(expected, scores, 0.0001F);
+    }
+
+    public void testNotATreeEnsemble() {
+        assertFalse(RankLibTreeParser.isTreeEnsemble("## Coordinate Ascent\n1:0.5 2:0.5"));
+        expectThrows(IllegalArgumentException.class, () -> RankLibTreeParser.parse("## LambdaMART\n<ensemble>\n<tree>"));
+    }
+
+    private void assertSameScores(String model, int numNodes) {
+        Ranker rankLib = new RankerFactory().loadRankerFromString(model);
+        TreeEnsembleRanker compiled = RankLibTreeParser.parse(model);
+        assertEquals(rankLib.name(), compiled.name());
+        assertEquals(numNodes, compiled.numNodes());
+        int numDocs = 100;
+        float[][] block = new float[2][numDocs];
+        float[] expected = new float[numDocs];
+        for (int i = 0; i < numDocs; i++) {
+            DataPoint point = new DenseProgramaticDataPoint(2);
+            point.setFeatureValue(1, random().nextFloat());
+            point.setFeatureValue(2, random().nextFloat() * 2);
+            assertEquals(rankLib.eval(point), compiled.score(point), 0.0001);
+            block[0][i] = point.getFeatureValue(1);
+            block[1][i] = point.getFeatureValue(2);
+            expected[i] = compiled.score(point);
+        }
+        float[] scores = new float[numDocs];
+        compiled.score(block, numDocs, scores);
+        assertArrayEquals(expected, scores, 0.0F);
+
+        // absent features must take the same branches as features scoring 0
+        SparseDataPoint sparse = new SparseDataPoint(2);
+        for (int i = 0; i < numDocs; i++) {
+            DataPoint point = new DenseProgramaticDataPoint(2);
+            sparse.reset();
+            for (int fid = 1; fid <= 2; fid++) {
+                if (random().nextBoolean()) {
+                    float value = random().nextFloat() * fid;
+                    point.setFeatureValue(fid, value);
+                    sparse.setFeatureValue(fid, value);
+                }
+            }
+            assertEquals(compiled.score(point), compiled.scoreSparse(sparse), 0.0F);
+            assertEquals(rankLib.eval(point), new RankLibRanker(rankLib).scoreSparse(sparse), 0.0001);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.stats;
+
+import com.o19s.es.ltr.query.LtrQuery;
+import com.o19s.es.ltr.query.LtrQueryServices;
+import com.o19s.es.ltr.ranker.NoopRanker;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class LtrStatsTests extends ESTestCase {
+    public void testTimer() {
+        LtrStats.Timer timer = new LtrStats.ModelStats().eval();
+        timer.record(3);
+        timer.record(10, 1000);
+        assertEquals(11, timer.docs());
+        assertEquals(1003, timer.nanos());
+    }
+
+    public void testModelStats() throws IOException {
+        LtrStats stats = new LtrStats();
+        assertSame(stats.model("my_model/1"), stats.model("my_model/1"));
+        stats.model("my_model/1").queried();
+        stats.model("my_model/1").docsScored(5);
+        stats.model("my_model/1").feature("title").record(100);
+        stats.scriptCompiled();
+        for (int i = 0; i < 3; i++) {
+            stats.scriptExecuted();
+        }
+
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        stats.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        String json = builder.endObject().string();
+        assertTrue(json, json.contains("\"compilations\":1,\"executions\":3,\"cache_misses\":1,\"cache_hits\":2"));
+        assertTrue(json, json.contains("\"my_model/1\":{\"queries\":1,\"docs_scored\":5"));
+        assertTrue(json, json.contains("\"title\":{\"sampled_docs\":1,\"sampled_nanos\":100,\"avg_nanos\":100,"
+                + "\"histogram\":[{\"lt_nanos\":128,\"count\":1}]}"));
+    }
+
+    public void testQueryStats() throws IOException {
+        try (Directory dir = newDirectory();
+             IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig())) {
+            int numDocs = randomIntBetween(1, 300);
+            for (int i = 0; i < numDocs; i++) {
+                Document doc = new Document();
+                doc.add(newTextField("field", i % 2 == 0 ? "brown cow" : "brown", Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            try (DirectoryReader reader = DirectoryReader.open(writer)) {
+                LtrStats.ModelStats stats = new LtrStats().model("noop");
+                List<Query> features = Arrays.asList(new TermQuery(new Term("field", "brown")),
+                        new TermQuery(new Term("field", "cow")));
+                LtrQuery query = new LtrQuery(features, NoopRanker.INSTANCE, Arrays.asList("brown", null),
+                        null, true, false, 0, new LtrQueryServices().stats(stats));
+                new IndexSearcher(reader).search(query, 10);
+                assertEquals(1, stats.queries());
+                assertEquals(numDocs, stats.docsScored());
+                assertEquals(numDocs, stats.eval().docs());
+                assertTrue(stats.feature("brown").docs() > 0);
+                assertTrue(stats.feature("feature_2").docs() > 0);
+            }
+        }
+    }
+
+    public void testPendingDocs() throws IOException {
+        try (Directory dir = newDirectory();
+             IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig())) {
+            int numDocs = randomIntBetween(1, 300);
+            for (int i = 0; i < numDocs; i++) {
+                Document doc = new Document();
+                doc.add(newTextField("field", "brown", Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            try (DirectoryReader reader = DirectoryReader.open(writer)) {
+                LtrStats ltrStats = new LtrStats();
+                LtrStats.ModelStats stats = ltrStats.model("noop");
+                // top k scores documents one at a time
+                LtrQuery query = new LtrQuery(Arrays.asList(new TermQuery(new Term("field", "brown"))), NoopRanker.INSTANCE,
+                        Arrays.asList("brown"), null, true, false, 5, new LtrQueryServices().stats(stats));
+                new IndexSearcher(reader).search(query, 10);
+                assertEquals(0, stats.docsScored());
+                ltrStats.flushPending();
+                assertEquals(numDocs, stats.docsScored());
+                ltrStats.flushPending();
+                assertEquals(numDocs, stats.docsScored());
+            }
+        }
+    }
+
+    public void testBounded() {
+        LtrStats stats = new LtrStats();
+        for (int i = 0; i < LtrStats.MAX_MODELS; i++) {
+            stats.model("model_" + i);
+        }
+        assertSame(stats.model(LtrStats.OTHER), stats.model("one_too_many"));
+        assertNotSame(stats.model(LtrStats.OTHER), stats.model("model_0"));
+
+        LtrStats.ModelStats model = stats.model("model_0");
+        for (int i = 0; i < LtrStats.MAX_FEATURES; i++) {
+            model.feature("feature_" + i);
+        }
+        assertSame(model.feature(LtrStats.OTHER), model.feature("one_too_many"));
+        assertNotSame(model.feature(LtrStats.OTHER), model.feature("feature_0"));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.store;
+
+import com.o19s.es.ltr.query.LtrCircuitBreaker;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+@LuceneTestCase.SuppressSysoutChecks(bugUrl = "RankLib prints when loading models")
+public class ModelStoreTests extends ESTestCase {
+    static final String LINEAR = "## Coordinate Ascent\n" +
+            "## Restart = 5\n" +
+            "## MaxIteration = 25\n" +
+            "## StepBase = 0.05\n" +
+            "## StepScale = 2.0\n" +
+            "## Tolerance = 0.001\n" +
+            "## Regularized = false\n" +
+            "## Slack = 0.001\n" +
+            "1:0.5 2:0.5";
+
+    public void testCompiledOncePerVersion() {
+        ModelStore store = new ModelStore(Settings.EMPTY);
+        AtomicInteger loads = new AtomicInteger();
+        LtrRanker first = store.load("linear", 1, () -> {
+            loads.incrementAndGet();
+            return LINEAR;
+        });
+        assertSame(first, store.load("linear", 1, () -> {
+            throw new AssertionError("should be cached");
+        }));
+        LtrRanker second = store.load("linear", 2, () -> {
+            loads.incrementAndGet();
+            return LINEAR.replace("2:0.5", "2:0.25");
+        });
+        assertNotSame(first, second);
+        assertEquals(2, loads.get());
+        assertEquals(1, store.cacheStats().getHits());
+        assertTrue(store.ramBytesUsed() > 0);
+    }
+
+    public void testBoundedByMemory() {
+        ModelStore store = new ModelStore(Settings.builder().put(ModelStore.CACHE_MAX_SIZE.getKey(), "1b").build());
+        store.load("linear", 1, () -> LINEAR);
+        store.load("linear", 2, () -> LINEAR);
+        assertTrue(store.cacheStats().getEvictions() > 0);
+    }
+
+    public void testCircuitBreaker() {
+        LtrCircuitBreaker breaker = new LtrCircuitBreaker(Settings.builder().put(LtrCircuitBreaker.LIMIT.getKey(), "1b").build());
+        ModelStore store = new ModelStore(Settings.EMPTY, breaker);
+        expectThrows(CircuitBreakingException.class, () -> store.load("linear", 1, () -> LINEAR));
+        assertEquals(0, breaker.getUsed());
+        assertEquals(1, breaker.getTrippedCount());
+        // the estimate is checked before compiling
+        expectThrows(CircuitBreakingException.class, () -> store.load("broken", 1, () -> "## LambdaMART\n<ensemble>\n<tree>"));
+        assertEquals(2, breaker.getTrippedCount());
+
+        // evicted models are released
+        LtrCircuitBreaker unlimited = new LtrCircuitBreaker(Settings.EMPTY);
+        ModelStore smallStore = new ModelStore(Settings.builder().put(ModelStore.CACHE_MAX_SIZE.getKey(), "1b").build(), unlimited);
+        smallStore.load("linear", 1, () -> LINEAR);
+        smallStore.load("linear", 2, () -> LINEAR);
+        assertEquals(smallStore.ramBytesUsed(), unlimited.getUsed());
+
+        // models failing to compile are released
+        long used = unlimited.getUsed();
+        expectThrows(ElasticsearchException.class, () -> smallStore.load("broken", 1, () -> "## LambdaMART\n<ensemble>\n<tree>"));
+        assertEquals(used, unlimited.getUsed());
+    }
+
+    public void testValidate() {
+        ModelStore store = new ModelStore(Settings.EMPTY);
+        store.validate(LINEAR);
+        expectThrows(IllegalArgumentException.class, () -> store.validate("## LambdaMART\n<ensemble>\n<tree>"));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.warmup;
+
+import com.o19s.es.ltr.query.LtrQueryParserPlugin;
+import com.o19s.es.ltr.query.LtrServices;
+import com.o19s.es.ltr.stats.LtrStats;
+import com.o19s.es.ltr.store.ModelStore;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.test.ESSingleNodeTestCase;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+
+public class LtrWarmerSingleNodeTests extends ESSingleNodeTestCase {
+    private static final String MODEL = "## LambdaMART\n" +
+            "<ensemble>\n" +
+            "<tree id=\"1\" weight=\"0.1\">\n" +
+            "<split>\n<feature> 1 </feature>\n<threshold> 0.5 </threshold>\n" +
+            "<split pos=\"left\">\n<output> -1.0 </output>\n</split>\n" +
+            "<split pos=\"right\">\n<output> 1.0 </output>\n</split>\n" +
+            "</split>\n" +
+            "</tree>\n" +
+            "</ensemble>\n";
+
+    @Override
+    protected Collection<Class<? extends Plugin>> getPlugins() {
+        return Collections.singletonList(LtrQueryParserPlugin.class);
+    }
+
+    public void testWarmModels() throws IOException {
+        LtrServices services = services();
+        storeModel(services);
+        assertEquals(0, services.modelStore().ramBytesUsed());
+        assertEquals(1, warmer(services).warmModels());
+        // compiled into the cache, the first query won't parse it
+        assertTrue(services.modelStore().ramBytesUsed() > 0);
+    }
+
+    public void testReplayQueries() throws IOException {
+        // the services the parsed ltr queries run with
+        LtrServices services = getInstanceFromNode(LtrServices.class);
+        storeModel(services);
+        IndexService index = createIndex("test", Settings.builder()
+                .putArray(LtrWarmer.QUERIES.getKey(),
+                        "{\"match\": {\"field\": \"foo\"}}",
+                        "{\"ltr\": {\"stored_model\": {\"name\": \"my_model\", \"version\": 1}, \"top_k\": 5, " +
+                                "\"features\": [{\"match\": {\"field\": \"foo\"}}]}}",
+                        "{\"no_such_query\": {}}")
+                .put(LtrWarmer.QUERY_REPEAT.getKey(), 2)
+                .build());
+        client().prepareIndex("test", "doc", "1").setSource("field", "foo bar").get();
+        client().admin().indices().prepareRefresh("test").get();
+        LtrStats.ModelStats stats = services.stats().model(ModelStore.id("my_model", 1));
+        long docsScored = stats.docsScored();
+        // queries that can't be parsed are skipped
+        assertEquals(2, warmer(services).replayQueries(index, index.getShard(0)));
+        // scored one at a time with top_k, counted once the replay flushed them. The node's own
+        // warmer may replay the queries too.
+        assertTrue(stats.docsScored() >= docsScored + 2);
+    }
+
+    private LtrServices services() {
+        LtrServices services = new LtrServices(Settings.EMPTY);
+        services.setClient(client());
+        return services;
+    }
+
+    private LtrWarmer warmer(LtrServices services) {
+        LtrWarmer warmer = new LtrWarmer(Settings.builder().put(LtrWarmer.EVALUATIONS.getKey(), 100).build(), services);
+        warmer.start(getInstanceFromNode(ThreadPool.class), getInstanceFromNode(NamedXContentRegistry.class));
+        return warmer;
+    }
+
+    private void storeModel(LtrServices services) throws IOException {
+        PlainActionFuture<IndexResponse> stored = PlainActionFuture.newFuture();
+        ModelStore.store(client(), "my_model", 1, MODEL, services.modelStore().validate(MODEL), stored);
+        stored.actionGet();
+        client().admin().indices().prepareRefresh(ModelStore.INDEX).get();
+    }
+}
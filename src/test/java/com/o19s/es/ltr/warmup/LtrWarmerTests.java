@@ -0,0 +1,62 @@
+/*
+ * Copyright [2017] Doug Turnbull
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.es.ltr.warmup;
+
+import com.o19s.es.ltr.ranker.LinearRanker;
+import com.o19s.es.ltr.ranker.NoopRanker;
+import com.o19s.es.ltr.ranker.RankLibTreeParser;
+import com.o19s.es.ltr.ranker.TreeEnsembleRanker;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.Collections;
+import java.util.Random;
+
+public class LtrWarmerTests extends ESTestCase {
+    private static final String MODEL = "## LambdaMART\n" +
+            "<ensemble>\n" +
+            "<tree id=\"1\" weight=\"0.1\">\n" +
+            "<split>\n<feature> 3 </feature>\n<threshold> 0.5 </threshold>\n" +
+            "<split pos=\"left\">\n<output> -1.0 </output>\n</split>\n" +
+            "<split pos=\"right\">\n<output> 1.0 </output>\n</split>\n" +
+            "</split>\n" +
+            "</tree>\n" +
+            "</ensemble>\n";
+
+    public void testNumFeatures() {
+        TreeEnsembleRanker trees = RankLibTreeParser.parse(MODEL);
+        assertEquals(3, LtrWarmer.numFeatures(trees));
+        assertEquals(5, LtrWarmer.numFeatures(new LinearRanker("linear", new int[] {5, 2}, new float[] {1.0F, 1.0F}, 0.0F)));
+        assertEquals(0, LtrWarmer.numFeatures(NoopRanker.INSTANCE));
+    }
+
+    public void testExercise() {
+        TreeEnsembleRanker trees = RankLibTreeParser.parse(MODEL);
+        // three scores per evaluation, each within [-0.1, 0.1], and one block
+        float sum = LtrWarmer.exercise(trees, 200, new Random(random().nextLong()));
+        assertTrue(Math.abs(sum) <= 200 * 3 * 0.1F + 0.1F);
+        assertEquals(0.0F, LtrWarmer.exercise(NoopRanker.INSTANCE, 200, random()), 0.0F);
+    }
+
+    public void testSettings() {
+        assertFalse(LtrWarmer.ENABLED.get(Settings.EMPTY));
+        assertEquals(Collections.emptyList(), LtrWarmer.QUERIES.get(Settings.EMPTY));
+        Settings settings = Settings.builder()
+                .putArray("index.ltr.warmup.queries", "{\"match_all\": {}}", "{\"ltr\": {}}")
+                .build();
+        assertEquals(2, LtrWarmer.QUERIES.get(settings).size());
+    }
+}